@@ -0,0 +1,82 @@
+package com.eg.element;
+
+import java.lang.management.ManagementFactory;
+
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.physics.box2d.World;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+
+/**
+ * Headless check that {@link Liquid#step()} does not allocate once it is warmed up.
+ * <p>
+ * Sets up the particles like {@link LiquidBenchmark}, runs a few thousand steps so every
+ * buffer has grown to its final size and then sums the bytes allocated by all threads,
+ * the scheduler's workers included, around each step. Exits with status 1 if any step
+ * allocated. Needs a JVM with {@link com.sun.management.ThreadMXBean}, like HotSpot.
+ */
+public class AllocationCheck {
+
+	private static final int PARTICLES = 3000;
+	private static final float SPACING = 0.3f;
+	private static final float LEFT = -16.5f;
+	private static final float RIGHT = 16.5f;
+	private static final float BOTTOM = -8.8f;
+
+	//until the JIT settled, installing compiled methods allocates a few hundred bytes now and then
+	private static final int WARMUP_STEPS = 3000;
+	//covers several compactions
+	private static final int STEPS = 500;
+
+	public static void main(String[] args){
+		GdxNativesLoader.load();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()){
+			System.out.println("Allocated bytes per thread are not supported by this JVM");
+			System.exit(1);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		World world = new World(new Vector2(0, -9.8f), true);
+		GameScreen.createLevel(world, new Array<ModelInstance>());
+		Liquid liquid = new Liquid(world, PARTICLES);
+		liquid.magnets.add(new Magnet(world, new Vector2()));
+
+		int columns = (int)((RIGHT - LEFT) / SPACING);
+		for (int i=0; i<PARTICLES; i++)
+			liquid.spawnParticle(LEFT + (i % columns) * SPACING, BOTTOM + (i / columns) * SPACING);
+
+		for (int i=0; i<WARMUP_STEPS; i++) liquid.step();
+
+		// The workers exist by now, reading the counters of fixed ids allocates nothing.
+		// Reading them has to be warmed up as well, compiling it during the measured steps allocates
+		long[] ids = threads.getAllThreadIds();
+		for (int i=0; i<WARMUP_STEPS; i++) allocatedBytes(threads, ids);
+		long total = 0;
+		int allocatingSteps = 0;
+		for (int i=0; i<STEPS; i++){
+			long before = allocatedBytes(threads, ids);
+			liquid.step();
+			long bytes = allocatedBytes(threads, ids) - before;
+			total += bytes;
+			if (bytes > 0) allocatingSteps++;
+		}
+
+		liquid.dispose();
+		world.dispose();
+
+		System.out.println(total+" bytes allocated in "+STEPS+" steps, "+allocatingSteps+" steps allocated");
+		System.exit(total == 0 ? 0 : 1);
+	}
+
+	private static long allocatedBytes(com.sun.management.ThreadMXBean threads, long[] ids){
+		long bytes = 0;
+		for (int i=0; i<ids.length; i++){
+			long threadBytes = threads.getThreadAllocatedBytes(ids[i]);
+			// -1 for threads that ended
+			if (threadBytes > 0) bytes += threadBytes;
+		}
+		return bytes;
+	}
+}
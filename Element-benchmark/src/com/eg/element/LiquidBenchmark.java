@@ -0,0 +1,158 @@
+package com.eg.element;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.physics.box2d.World;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+
+/**
+ * Headless JMH benchmarks of the liquid solver.
+ * <p>
+ * Only the box2d natives are loaded, no GL context is created. The particles are
+ * laid out on a lattice inside a basin sized for their number, the level of the
+ * {@link GameScreen} only holds a few thousand, and settled for a few steps before
+ * measuring. Besides the full step every stage is measured on
+ * its own; the stages run on the state the previous step left behind.
+ * <p>
+ * JMH 1.37 and its dependencies are in libs/, the annotation processor generates the
+ * benchmarks into .apt_generated. Run {@link #main(String[])} or the generated
+ * benchmarks jar.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LiquidBenchmark {
+
+	private static final int SETTLE_STEPS = 20;
+	private static final float SPACING = 0.3f;
+	private static final float VERLET_SKIN = 0.2f;
+
+	//rows of the lattice, as deep as 3000 particles in the game's level. The basin grows
+	//in width only, deeper liquid is compressed beyond what the neighbor limit can hold
+	private static final int ROWS = 28;
+	private static final float WALL = 2f;
+	private static final float BOTTOM = -8.8f;
+
+	@Param({"1000", "3000", "10000", "50000"})
+	public int particles;
+
+	//the fused kernel ignores the Verlet skin, so the two are not combined
+	@Param({"default", "fused", "verlet"})
+	public String kernel;
+
+	private World world;
+	private Liquid liquid;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		GdxNativesLoader.load();
+
+		int columns = (particles + ROWS - 1) / ROWS;
+		float width = columns * SPACING;
+		float depth = ROWS * SPACING;
+
+		world = new World(new Vector2(0, -9.8f), true);
+		createBasin(width, depth);
+
+		liquid = new Liquid(world, particles);
+		liquid.setFusedKernel(kernel.equals("fused"));
+		if (kernel.equals("verlet")) liquid.setVerletSkin(VERLET_SKIN);
+		//above the middle of the liquid, like the game's mouse magnet
+		liquid.magnets.add(new Magnet(world, new Vector2(0, BOTTOM + depth + Magnet.SIZE)));
+
+		float left = (SPACING - width) / 2;
+		for (int i=0; i<particles; i++)
+			liquid.spawnParticle(left + (i % columns) * SPACING, BOTTOM + SPACING/2 + (i / columns) * SPACING);
+
+		for (int i=0; i<SETTLE_STEPS; i++) step();
+	}
+
+	// Floor and walls around the lattice, high enough that the settling liquid doesn't spill over.
+	// The walls reach down through the floor like in the game's level, particles in the corners
+	// would be pushed out through the walls' bottom edges otherwise.
+	private void createBasin(float width, float depth){
+		float height = depth*2 + WALL;
+		float centerY = BOTTOM - WALL + height/2;
+		new Quad(world, 0f, BOTTOM - WALL/2, width + 2*WALL, WALL, 0f);
+		new Quad(world, -(width + WALL)/2, centerY, WALL, height, 0f);
+		new Quad(world, (width + WALL)/2, centerY, WALL, height, 0f);
+	}
+
+	@TearDown(Level.Iteration)
+	public void checkParticles(){
+		if (liquid.getActiveParticleCount() != particles)
+			throw new IllegalStateException(liquid.getActiveParticleCount()+" of "+particles+" particles left");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		liquid.dispose();
+		world.dispose();
+	}
+
+	/** A tick of the simulation thread, culling, compaction and snapshot included. */
+	@Benchmark
+	public void step() throws Exception {
+		liquid.step();
+		world.step(liquid.getTimeStep(), 8, 3);
+	}
+
+	/** 
+	 * Grid update, collision broadphase and neighbor search. The positions don't change between
+	 * the calls, so the Verlet lists are rebuilt every time. What they save shows in {@link #step()}.
+	 */
+	@Benchmark
+	public void neighborSearch() throws Exception {
+		liquid.invalidateNeighborLists();
+		liquid.beginStep();
+		liquid.searchNeighbors();
+	}
+
+	/** Empty for the fused kernel, which accumulates the pressures in {@link #neighborSearch()}. */
+	@Benchmark
+	public void pressure() throws Exception {
+		liquid.calculatePressures();
+	}
+
+	@Benchmark
+	public void forces() throws Exception {
+		liquid.applyForces();
+	}
+
+	@Benchmark
+	public void collisions() throws Exception {
+		liquid.resolveCollisions();
+	}
+
+	@Benchmark
+	public void move() throws Exception {
+		liquid.moveParticles();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(LiquidBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
@@ -212,8 +212,8 @@ public class AABB {
 	    upper.x = lower.x;
 	    upper.y = lower.y;
 
+	    final Vector2 v2 = v1;
 	    for (int i = 1; i < shape.getVertexCount(); ++i) {
-	      Vector2 v2 = new Vector2();
 	      shape.getVertex(i, v2);
 	      // Vector2 v = Mul(xf, m_vertices[i]);
 	      vx = (c * v2.x - s * v2.y) + xfp.x;
@@ -0,0 +1,201 @@
+package com.eg.element;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.utils.Disposable;
+
+/**
+ * Runs loops over index ranges on a fixed set of worker threads.
+ * <p>
+ * {@link #run(RangeTask, int)} cuts the range [0, count) into chunks of
+ * {@link #getChunkSize()} indices. The workers and the calling thread claim
+ * chunks one after another until the range is exhausted, so uneven chunks
+ * balance out. The call returns once every chunk is done, which makes each
+ * call exactly one barrier. Nothing is allocated per call.
+ * <p>
+ * Several threads may share a scheduler, their loops run one after another on all workers.
+ */
+public class ChunkedScheduler implements Disposable {
+
+	public static final int DEFAULT_CHUNK_SIZE = 64;
+	//how long dispose() waits for every worker to stop
+	private static final long SHUTDOWN_TIMEOUT = 1000;
+
+	public interface RangeTask {
+		/**
+		 * Processes the indices [start, end).
+		 * @param worker id of the executing thread in [0, getWorkerCount()), 0 is the calling thread
+		 */
+		void run(int start, int end, int worker);
+	}
+
+	private final Worker[] workers;
+	private final Object monitor = new Object();
+	private final AtomicInteger nextChunk = new AtomicInteger();
+	private volatile int chunkSize;
+
+	//state of the current loop, guarded by monitor
+	private RangeTask task;
+	private int count;
+	private int loopChunkSize;
+	private int generation;
+	private int pending;
+	private Throwable failure;
+	private boolean running = true;
+
+	public ChunkedScheduler(int threads, int chunkSize){
+		this(threads, chunkSize, Thread.NORM_PRIORITY);
+	}
+
+	/**
+	 * @param threads number of threads including the calling one
+	 * @param priority priority of the worker threads. Java has no way to pin them to cores, 
+	 * that is left to the OS.
+	 */
+	public ChunkedScheduler(int threads, int chunkSize, int priority){
+		setChunkSize(chunkSize);
+
+		workers = new Worker[Math.max(0, threads-1)];
+		for (int i=0; i<workers.length; i++){
+			workers[i] = new Worker(i+1);
+			workers[i].setPriority(priority);
+			workers[i].start();
+		}
+	}
+
+	public int getWorkerCount(){ return workers.length+1; }
+
+	public int getChunkSize(){ return chunkSize; }
+
+	public void setChunkSize(int chunkSize){
+		if (chunkSize < 1) throw new IllegalArgumentException("chunk size must be positive: "+chunkSize);
+		this.chunkSize = chunkSize;
+	}
+
+	/** Runs the task over [0, count) and waits until all chunks are processed. */
+	public synchronized void run(RangeTask task, int count) throws InterruptedException, ExecutionException {
+		if (count <= 0) return;
+
+		final int chunkSize = this.chunkSize;
+		if (workers.length == 0 || count <= chunkSize){
+			task.run(0, count, 0);
+			return;
+		}
+
+		synchronized(monitor){
+			if (!running) throw new IllegalStateException("scheduler has been disposed");
+			this.task = task;
+			this.count = count;
+			this.loopChunkSize = chunkSize;
+			nextChunk.set(0);
+			failure = null;
+			pending = workers.length;
+			generation++;
+			monitor.notifyAll();
+		}
+
+		Throwable error = null;
+		try{
+			work(task, count, chunkSize, 0);
+		}catch (Throwable t){
+			error = t;
+		}
+
+		// Wait for the workers even when interrupted, the next loop must not start before they are done
+		boolean interrupted = false;
+		synchronized(monitor){
+			while (pending > 0){
+				try{
+					monitor.wait();
+				}catch (InterruptedException e){
+					interrupted = true;
+				}
+			}
+			this.task = null;
+			if (error == null) error = failure;
+		}
+
+		if (interrupted){
+			Thread.currentThread().interrupt();
+			throw new InterruptedException();
+		}
+		if (error != null) throw new ExecutionException(error);
+	}
+
+	private void work(RangeTask task, int count, int chunkSize, int worker){
+		int start;
+		while ((start = nextChunk.getAndIncrement()*chunkSize) < count)
+			task.run(start, Math.min(start + chunkSize, count), worker);
+	}
+
+	/** Waits for the running loop and stops the workers. */
+	@Override
+	public synchronized void dispose() {
+		synchronized(monitor){
+			if (!running) return;
+			running = false;
+			monitor.notifyAll();
+		}
+
+		boolean interrupted = false;
+		for (int i=0; i<workers.length; i++){
+			try{
+				workers[i].join(SHUTDOWN_TIMEOUT);
+			}catch (InterruptedException e){
+				interrupted = true;
+			}
+			//no Gdx.app in the headless benchmarks
+			if (workers[i].isAlive() && Gdx.app != null) Gdx.app.error("ChunkedScheduler", workers[i].getName()+" did not stop");
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private class Worker extends Thread {
+
+		private final int id;
+
+		private Worker(int id){
+			super("Element-worker-"+id);
+			this.id = id;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			int seen = 0;
+			while (true){
+				RangeTask task;
+				int count, chunkSize;
+
+				synchronized(monitor){
+					while (running && generation == seen){
+						try{
+							monitor.wait();
+						}catch (InterruptedException e){
+							return;
+						}
+					}
+					if (!running) return;
+					seen = generation;
+					task = ChunkedScheduler.this.task;
+					count = ChunkedScheduler.this.count;
+					chunkSize = loopChunkSize;
+				}
+
+				try{
+					work(task, count, chunkSize, id);
+				}catch (Throwable t){
+					synchronized(monitor){
+						if (failure == null) failure = t;
+					}
+				}
+
+				synchronized(monitor){
+					if (--pending == 0) monitor.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.eg.element;
 
 import com.badlogic.gdx.Game;
+import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.g2d.BitmapFont;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
 
@@ -9,8 +10,30 @@ public class Element extends Game {
         
         SpriteBatch batch;
         BitmapFont font;
+        //quality range of the simulation, the platform's defaults unless given by the launcher
+        QualityGovernor.Limits limits;
+        
+        //threads of the simulation executor including the calling one, 0 for one per core,
+        //and their priority. Set by the launcher before the game is created
+        public int threads;
+        public int threadPriority = Thread.NORM_PRIORITY;
+        //shared by the liquid and the surface of every game screen, shut down with the game
+        private ChunkedScheduler executor;
+        
+        public Element() {
+        }
+        
+        public Element(QualityGovernor.Limits limits) {
+                this.limits = limits;
+        }
 
         public void create() {
+                if (limits == null) limits = QualityGovernor.Limits.forPlatform(Gdx.app.getType());
+                
+                int count = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+                Gdx.app.log("Element", count+" threads available");
+                executor = new ChunkedScheduler(count, ChunkedScheduler.DEFAULT_CHUNK_SIZE, threadPriority);
+                
                 batch = new SpriteBatch();
                 font = new BitmapFont();
                 this.setScreen(new MainMenuScreen(this));
@@ -20,7 +43,15 @@ public class Element extends Game {
                 super.render();
         }
         
+        /** @return the workers the simulation and the surface extraction run on */
+        public ChunkedScheduler getExecutor() {
+                return executor;
+        }
+        
         public void dispose() {
+                // The screen first, it stops the simulation thread, then its workers
+                if (getScreen() != null) getScreen().dispose();
+                executor.dispose();
                 batch.dispose();
                 font.dispose();
         }
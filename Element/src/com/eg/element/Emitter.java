@@ -0,0 +1,28 @@
+package com.eg.element;
+
+import com.badlogic.gdx.math.Vector2;
+
+/**
+ * Spawns particles into a {@link Liquid} at a fixed point every step.
+ * The rate does not depend on the liquid's time step, shorter steps spawn fewer particles each.
+ */
+public class Emitter {
+
+	public final Vector2 position;
+	//particles spawned per step of GameScreen.DT
+	public int rate;
+	//fraction of a particle left over from the last steps
+	private float pending;
+
+	public Emitter(float x, float y, int rate){
+		position = new Vector2(x, y);
+		this.rate = rate;
+	}
+
+	void emit(Liquid liquid){
+		pending += rate * liquid.getSpawnRateScale() * (liquid.getTimeStep() / GameScreen.DT);
+		int count = (int)pending;
+		pending -= count;
+		if (count > 0) liquid.createParticle(count, position);
+	}
+}
@@ -0,0 +1,275 @@
+package com.eg.element;
+
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.physics.box2d.Body;
+import com.badlogic.gdx.physics.box2d.BodyDef.BodyType;
+import com.badlogic.gdx.physics.box2d.CircleShape;
+import com.badlogic.gdx.physics.box2d.Fixture;
+import com.badlogic.gdx.physics.box2d.PolygonShape;
+import com.badlogic.gdx.physics.box2d.Shape;
+import com.badlogic.gdx.physics.box2d.Transform;
+import com.badlogic.gdx.utils.ObjectIntMap;
+
+/**
+ * World space geometry of the fixtures the liquid collides with.
+ * <p>
+ * Polygons are stored as vertices and outward edge normals, circles as center and radius,
+ * all in flat primitive arrays indexed by the fixture's slot. Reading the cache needs
+ * no JNI calls and no locking, so the collision stage can use it from any worker.
+ * <p>
+ * Entries persist between steps. Every step the fixtures are reported again between
+ * {@link #begin()} and {@link #end()}; a fixture's geometry is only recomputed when its
+ * body is not static or its transform changed, and fixtures that were not reported are dropped.
+ */
+public class FixtureCache {
+
+	public static final int POLYGON = 0;
+	public static final int CIRCLE = 1;
+
+	//box2d's b2_maxPolygonVertices
+	public static final int MAX_POLYGON_VERTICES = 8;
+	private static final int STRIDE = MAX_POLYGON_VERTICES*2;
+
+	private int count;
+	private int step;
+	private boolean changed;
+	private final ObjectIntMap<Fixture> slots = new ObjectIntMap<Fixture>();
+	private int[] stamps;
+	//body transform the geometry was computed with, x, y, cos and sin
+	private float[] transforms;
+	private Fixture[] fixtures;
+	private int[] types;
+	private int[] vertexCounts;
+	//polygon vertices and normals, x/y interleaved, slot i owns [i*STRIDE, (i+1)*STRIDE)
+	private float[] vertices;
+	private float[] normals;
+	//circle center and radius
+	private float[] circles;
+	//world space bounds as lower x, lower y, upper x, upper y
+	private float[] bounds;
+
+	private final Vector2 vertex = new Vector2();
+
+	public FixtureCache(int capacity){
+		allocate(Math.max(1, capacity));
+	}
+
+	private void allocate(int capacity){
+		fixtures = new Fixture[capacity];
+		stamps = new int[capacity];
+		transforms = new float[capacity*4];
+		types = new int[capacity];
+		vertexCounts = new int[capacity];
+		vertices = new float[capacity*STRIDE];
+		normals = new float[capacity*STRIDE];
+		circles = new float[capacity*3];
+		bounds = new float[capacity*4];
+	}
+
+	/** Starts a new round of {@link #update(Fixture)} calls. */
+	public void begin(){
+		step++;
+		changed = false;
+	}
+
+	/**
+	 * Makes sure the cached world space geometry of a polygon or circle fixture is current.
+	 * Has to be called from the thread that steps the world.
+	 * @return the slot of the fixture
+	 */
+	public int update(Fixture fixture){
+		int slot = slots.get(fixture, -1);
+		if (slot < 0){
+			if (count == fixtures.length) grow();
+			slot = count++;
+			fixtures[slot] = fixture;
+			slots.put(fixture, slot);
+			stamps[slot] = step;
+			capture(slot, fixture, fixture.getBody().getTransform().vals);
+			return slot;
+		}
+
+		stamps[slot] = step;
+		Body body = fixture.getBody();
+		float[] xf = body.getTransform().vals;
+		int t = slot*4;
+		if (body.getType() != BodyType.StaticBody || xf[Transform.POS_X] != transforms[t] || xf[Transform.POS_Y] != transforms[t+1] 
+				|| xf[Transform.COS] != transforms[t+2] || xf[Transform.SIN] != transforms[t+3])
+			capture(slot, fixture, xf);
+		return slot;
+	}
+
+	/**
+	 * Drops the fixtures that were not updated since {@link #begin()}. Slots of other
+	 * fixtures may change.
+	 */
+	public void end(){
+		for (int slot=count-1; slot>=0; slot--){
+			if (stamps[slot] == step) continue;
+
+			slots.remove(fixtures[slot], -1);
+			int last = --count;
+			if (slot != last) move(last, slot);
+			fixtures[last] = null;
+			changed = true;
+		}
+	}
+
+	/** @return whether any geometry was added, recomputed or removed since {@link #begin()} */
+	public boolean isChanged(){ return changed; }
+
+	private void move(int from, int to){
+		fixtures[to] = fixtures[from];
+		slots.put(fixtures[to], to);
+		stamps[to] = stamps[from];
+		types[to] = types[from];
+		vertexCounts[to] = vertexCounts[from];
+		System.arraycopy(transforms, from*4, transforms, to*4, 4);
+		System.arraycopy(vertices, from*STRIDE, vertices, to*STRIDE, STRIDE);
+		System.arraycopy(normals, from*STRIDE, normals, to*STRIDE, STRIDE);
+		System.arraycopy(circles, from*3, circles, to*3, 3);
+		System.arraycopy(bounds, from*4, bounds, to*4, 4);
+	}
+
+	private void capture(int slot, Fixture fixture, float[] xf){
+		changed = true;
+
+		Shape shape = fixture.getShape();
+		float c = xf[Transform.COS];
+		float s = xf[Transform.SIN];
+		float px = xf[Transform.POS_X];
+		float py = xf[Transform.POS_Y];
+		transforms[slot*4] = px;
+		transforms[slot*4+1] = py;
+		transforms[slot*4+2] = c;
+		transforms[slot*4+3] = s;
+
+		if (shape.getType() == Shape.Type.Circle){
+			CircleShape circle = (CircleShape) shape;
+			Vector2 position = circle.getPosition();
+			float x = c * position.x - s * position.y + px;
+			float y = s * position.x + c * position.y + py;
+			float r = circle.getRadius();
+
+			types[slot] = CIRCLE;
+			circles[slot*3] = x;
+			circles[slot*3+1] = y;
+			circles[slot*3+2] = r;
+			setBounds(slot, x - r, y - r, x + r, y + r);
+			return;
+		}
+
+		PolygonShape polygon = (PolygonShape) shape;
+		int offset = slot*STRIDE;
+		int n = polygon.getVertexCount();
+		float lowerX = Float.MAX_VALUE, lowerY = Float.MAX_VALUE;
+		float upperX = -Float.MAX_VALUE, upperY = -Float.MAX_VALUE;
+
+		// Transform the shape's vertices from local space to world space
+		for (int v=0; v<n; v++){
+			polygon.getVertex(v, vertex);
+			float x = c * vertex.x - s * vertex.y + px;
+			float y = s * vertex.x + c * vertex.y + py;
+			vertices[offset + v*2] = x;
+			vertices[offset + v*2 + 1] = y;
+			lowerX = Math.min(lowerX, x);
+			lowerY = Math.min(lowerY, y);
+			upperX = Math.max(upperX, x);
+			upperY = Math.max(upperY, y);
+		}
+
+		try{
+			computeNormals(vertices, normals, offset, n);
+		}catch(IllegalArgumentException e){
+			e.printStackTrace();
+		}
+
+		types[slot] = POLYGON;
+		vertexCounts[slot] = n;
+		float radius = polygon.getRadius();
+		setBounds(slot, lowerX - radius, lowerY - radius, upperX + radius, upperY + radius);
+	}
+
+	private void setBounds(int slot, float lowerX, float lowerY, float upperX, float upperY){
+		bounds[slot*4] = lowerX;
+		bounds[slot*4+1] = lowerY;
+		bounds[slot*4+2] = upperX;
+		bounds[slot*4+3] = upperY;
+	}
+
+	private final static void computeNormals(final float[] vertices, final float[] out, int offset, int count) throws IllegalArgumentException{
+	    // Compute normals. Ensure the edges have non-zero length.
+	    for (int i=0; i < count; ++i) {
+	      final int i1 = offset + i*2;
+	      final int i2 = offset + (i + 1 < count ? i + 1 : 0)*2;
+	      float edgeX = vertices[i2] - vertices[i1];
+	      float edgeY = vertices[i2+1] - vertices[i1+1];
+	      float len = (float)Math.sqrt(edgeX*edgeX + edgeY*edgeY);
+
+	      if(len==0) throw new IllegalArgumentException("degenerate polygon edge");
+	      // cross(edge, 1)
+	      out[i1] = edgeY / len;
+	      out[i1+1] = -edgeX / len;
+	    }
+	}
+
+	/** Same as {@link Fixture#testPoint(float, float)} on the cached geometry. */
+	public boolean testPoint(int slot, float x, float y){
+		if (types[slot] == CIRCLE){
+			float dx = x - circles[slot*3];
+			float dy = y - circles[slot*3+1];
+			float r = circles[slot*3+2];
+			return dx*dx + dy*dy <= r*r;
+		}
+
+		int offset = slot*STRIDE;
+		for (int v=0, n=vertexCounts[slot]; v<n; v++){
+			int k = offset + v*2;
+			if (normals[k] * (x - vertices[k]) + normals[k+1] * (y - vertices[k+1]) > 0f) return false;
+		}
+		return true;
+	}
+
+	public int size(){ return count; }
+	public int getType(int slot){ return types[slot]; }
+	public int getVertexCount(int slot){ return vertexCounts[slot]; }
+
+	/** @return polygon vertices, the ones of the slot start at {@link #getOffset(int)} */
+	public float[] getVertices(){ return vertices; }
+	/** @return polygon edge normals, the ones of the slot start at {@link #getOffset(int)} */
+	public float[] getNormals(){ return normals; }
+	public int getOffset(int slot){ return slot*STRIDE; }
+
+	public float getCircleX(int slot){ return circles[slot*3]; }
+	public float getCircleY(int slot){ return circles[slot*3+1]; }
+	public float getCircleRadius(int slot){ return circles[slot*3+2]; }
+
+	public float getLowerX(int slot){ return bounds[slot*4]; }
+	public float getLowerY(int slot){ return bounds[slot*4+1]; }
+	public float getUpperX(int slot){ return bounds[slot*4+2]; }
+	public float getUpperY(int slot){ return bounds[slot*4+3]; }
+
+	private void grow(){
+		Fixture[] fixtures = this.fixtures;
+		int[] stamps = this.stamps;
+		float[] transforms = this.transforms;
+		int[] types = this.types;
+		int[] vertexCounts = this.vertexCounts;
+		float[] vertices = this.vertices;
+		float[] normals = this.normals;
+		float[] circles = this.circles;
+		float[] bounds = this.bounds;
+
+		allocate(fixtures.length*2);
+
+		System.arraycopy(fixtures, 0, this.fixtures, 0, count);
+		System.arraycopy(stamps, 0, this.stamps, 0, count);
+		System.arraycopy(transforms, 0, this.transforms, 0, count*4);
+		System.arraycopy(types, 0, this.types, 0, count);
+		System.arraycopy(vertexCounts, 0, this.vertexCounts, 0, count);
+		System.arraycopy(vertices, 0, this.vertices, 0, count*STRIDE);
+		System.arraycopy(normals, 0, this.normals, 0, count*STRIDE);
+		System.arraycopy(circles, 0, this.circles, 0, count*3);
+		System.arraycopy(bounds, 0, this.bounds, 0, count*4);
+	}
+}
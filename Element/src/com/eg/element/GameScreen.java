@@ -1,6 +1,10 @@
 package com.eg.element;
 
+import java.io.IOException;
+import java.io.Writer;
+
 import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.Input;
 import com.badlogic.gdx.Screen;
 import com.badlogic.gdx.graphics.FPSLogger;
 import com.badlogic.gdx.graphics.GL10;
@@ -24,6 +28,9 @@ public class GameScreen implements Screen {
 
 	public static final float SCALE = 40f;
 	public static final float DT = 1f/60f;
+	//frames longer than this are cut, at most MAX_STEPS steps are simulated per frame
+	private static final float MAX_FRAME_TIME = 0.25f;
+	private static final int MAX_STEPS = 4;
 	public static final int[] BB = {700, 400};
 	
 	private final Element game;
@@ -31,6 +38,9 @@ public class GameScreen implements Screen {
 	public ModelBatch modelBatch;
 	
 	private Liquid l;
+	private SimulationThread simulation;
+	private LiquidRenderer liquidRenderer;
+	private Magnet cursor;
 	private World world;
 	private Box2DDebugRenderer debugRenderer;
 	private Matrix4 debugMatrix;
@@ -39,6 +49,19 @@ public class GameScreen implements Screen {
 	private Environment environment;
 	private Array<ModelInstance> instances = new Array<ModelInstance>();
 	private MetaballSystem system;
+	private QualityGovernor governor;
+	//duration of the last surface update in seconds
+	private float surfaceTime;
+	//whether the marching squares surface is drawn
+	private boolean showSurface = true;
+	//whether the metrics are shown, F1 toggles them and F2 writes them to metrics.csv and metrics.json
+	private boolean showMetrics;
+	private boolean metricsKey, dumpKey;
+	private Matrix4 overlayMatrix = new Matrix4();
+	
+	//time not simulated yet, as a fraction of a step it is how far the snapshot is blended towards its end
+	private float accumulator;
+	private float interpolation;
 	
 	private FPSLogger fpsLogger;
 	
@@ -67,17 +90,19 @@ public class GameScreen implements Screen {
         debugMatrix = new Matrix4(cam.combined);
 		debugMatrix.scale(1f, 1f, 1f);
         
-        l = new Liquid(world);
+        l = new Liquid(world, game.limits.maxParticles, game.getExecutor());
+        l.emitters.add(new Emitter(-850f/SCALE, 400f/SCALE, 1));
+        
+        //the magnet following the mouse
+        cursor = new Magnet(world, new Vector2());
+        l.magnets.add(cursor);
+        
+        liquidRenderer = new LiquidRenderer(l);
         
         camController = new CameraInputController(cam);
         Gdx.input.setInputProcessor(camController);
         
-        instances.add(new Quad(world, 0f, -400f/SCALE, 1500f/SCALE, 80f/SCALE, 0f));
-        instances.add(new Quad(world, -710f/SCALE, -100f/SCALE, 80f/SCALE, 600f/SCALE, 0f));
-        instances.add(new Quad(world, 710f/SCALE, 0f, 80f/SCALE, 800f/SCALE, 0f));
-        instances.add(new Quad(world, -920f/SCALE, 250f/SCALE, 520f/SCALE, 40f/SCALE, -0.25f));
-        
-        instances.add(new Circle(world, -400f/SCALE, 0, 50f/SCALE, -0.25f));
+        createLevel(world, instances);
         
 //        Array<Vector2> pos = new Array<Vector2>();
 //        
@@ -85,35 +110,128 @@ public class GameScreen implements Screen {
 //        	l.createParticle(1, new Vector2(x/3,y/3));
 //        }
         system = new MetaballSystem(l);
+        governor = new QualityGovernor(l, system, game.limits);
+        simulation = new SimulationThread(l, world, game.threadPriority);
+	}
+	
+	/** Adds the level geometry to the world. */
+	public static void createLevel(World world, Array<ModelInstance> instances){
+		instances.add(new Quad(world, 0f, -400f/SCALE, 1500f/SCALE, 80f/SCALE, 0f));
+		instances.add(new Quad(world, -710f/SCALE, -100f/SCALE, 80f/SCALE, 600f/SCALE, 0f));
+		instances.add(new Quad(world, 710f/SCALE, 0f, 80f/SCALE, 800f/SCALE, 0f));
+		instances.add(new Quad(world, -920f/SCALE, 250f/SCALE, 520f/SCALE, 40f/SCALE, -0.25f));
+		
+		instances.add(new Circle(world, -400f/SCALE, 0, 50f/SCALE, -0.25f));
 	}
 	
 	@Override
 	public void render(float delta) {
 		camController.update();
 		
-		Gdx.gl.glViewport(0, 0, Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
-        Gdx.gl.glClear(GL10.GL_COLOR_BUFFER_BIT | GL10.GL_DEPTH_BUFFER_BIT);
-        
+		// Wait for the steps simulated during the last frame, the world may only be changed until the next ones start
+		simulation.sync();
+		float alpha = interpolation;
+		governor.update(simulation.getStepTime(), surfaceTime);
+		Metrics.endFrame();
+		updateMetricsKeys();
+		
         Ray ray = cam.getPickRay(Gdx.input.getX(), Gdx.input.getY());
         ray.getEndPoint(touchPos, -ray.origin.z / ray.direction.z);
         
         //System.out.println(touchPos);
         
+        cursor.setTranslation(touchPos.x, touchPos.y);
+        if (Gdx.input.isTouched() && Gdx.input.isButtonPressed(Input.Buttons.RIGHT) && l.canPlaceMagnet(cursor))
+        	l.magnets.add(new Magnet(world, cursor.getTranslation()));
+        
+        // Simulate the time of this frame in fixed steps while the last ones are drawn. When
+        // falling behind the remaining time is dropped, the liquid slows down instead.
+        float timeStep = l.getTimeStep();
+        accumulator += Math.min(delta, MAX_FRAME_TIME);
+        int steps = (int)(accumulator / timeStep);
+        if (steps > MAX_STEPS){
+        	steps = MAX_STEPS;
+        	accumulator = 0f;
+        }else{
+        	accumulator -= steps * timeStep;
+        }
+        simulation.start(steps);
+        interpolation = accumulator / timeStep;
+        
+		Gdx.gl.glViewport(0, 0, Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
+        Gdx.gl.glClear(GL10.GL_COLOR_BUFFER_BIT | GL10.GL_DEPTH_BUFFER_BIT);
+        
         modelBatch.begin(cam);
-        l.draw(modelBatch);
-        //system.draw(modelBatch);
         modelBatch.render(instances, environment);
         modelBatch.render(l.magnets, environment);
         modelBatch.end();
         
+        long drawStart = Metrics.start();
+        liquidRenderer.draw(cam, alpha);
+        if (showSurface) system.draw(cam);
+        Metrics.lap(Metrics.DRAW, drawStart);
+        
         fpsLogger.log();
         
         //debugRenderer.render(world, debugMatrix);
         
-        l.update(delta, touchPos);
-        //system.update();
-        world.step(DT, 8, 3);
-
+        // 1: particles, 2: particles and marching squares surface, 3: splatted metaballs
+        if (Gdx.input.isKeyPressed(Input.Keys.NUM_1)){
+        	liquidRenderer.setMode(LiquidRenderer.Mode.PARTICLES);
+        	showSurface = false;
+        }else if (Gdx.input.isKeyPressed(Input.Keys.NUM_2)){
+        	liquidRenderer.setMode(LiquidRenderer.Mode.PARTICLES);
+        	showSurface = true;
+        }else if (Gdx.input.isKeyPressed(Input.Keys.NUM_3)){
+        	liquidRenderer.setMode(LiquidRenderer.Mode.SPLATTING);
+        	showSurface = false;
+        }
+        
+        surfaceTime = 0f;
+        if (showSurface){
+        	long start = System.nanoTime();
+        	system.update();
+        	surfaceTime = (System.nanoTime() - start) / 1E9f;
+        	Metrics.lap(Metrics.SURFACE, start);
+        }
+        
+        if (showMetrics) drawMetrics();
+	}
+	
+	// Only called between sync() and start(), the metrics may not change during a step
+	private void updateMetricsKeys(){
+		boolean pressed = Gdx.input.isKeyPressed(Input.Keys.F1);
+		if (pressed && !metricsKey){
+			showMetrics = !showMetrics;
+			Metrics.setEnabled(showMetrics);
+		}
+		metricsKey = pressed;
+		
+		pressed = Gdx.input.isKeyPressed(Input.Keys.F2);
+		if (pressed && !dumpKey) writeMetrics();
+		dumpKey = pressed;
+	}
+	
+	private void writeMetrics(){
+		try{
+			Writer writer = Gdx.files.local("metrics.csv").writer(false);
+			Metrics.writeCsv(writer);
+			writer.close();
+			writer = Gdx.files.local("metrics.json").writer(false);
+			Metrics.writeJson(writer);
+			writer.close();
+			Gdx.app.log("GameScreen", "Metrics written to metrics.csv and metrics.json");
+		}catch (IOException e){
+			Gdx.app.error("GameScreen", "Writing the metrics failed", e);
+		}
+	}
+	
+	private void drawMetrics(){
+		overlayMatrix.setToOrtho2D(0, 0, Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
+		game.batch.setProjectionMatrix(overlayMatrix);
+		game.batch.begin();
+		game.font.drawMultiLine(game.batch, Metrics.format()+"quality: "+governor.getQuality(), 10, Gdx.graphics.getHeight() - 10);
+		game.batch.end();
 	}
 
 	@Override
@@ -148,11 +266,15 @@ public class GameScreen implements Screen {
 
 	@Override
 	public void dispose() {
+		simulation.dispose();
 		debugRenderer.dispose();
 		modelBatch.dispose();
+		liquidRenderer.dispose();
         instances.clear();
         Quad.dispose();
         system.dispose();
+        l.dispose();
+        world.dispose();
 	}
 
 }
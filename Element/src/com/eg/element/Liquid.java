@@ -1,89 +1,27 @@
 package com.eg.element;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
-import com.badlogic.gdx.Gdx;
-import com.badlogic.gdx.Input;
-import com.badlogic.gdx.graphics.VertexAttributes.Usage;
-import com.badlogic.gdx.graphics.g3d.Model;
-import com.badlogic.gdx.graphics.g3d.ModelBatch;
-import com.badlogic.gdx.graphics.g3d.ModelInstance;
-import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
-import com.badlogic.gdx.graphics.g3d.Material;
-import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
 import com.badlogic.gdx.math.Vector2;
-import com.badlogic.gdx.math.Vector3;
-import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.utils.Array;
-import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.Disposable;
 import com.badlogic.gdx.utils.IntArray;
-import com.badlogic.gdx.utils.IntMap;
-import com.badlogic.gdx.physics.box2d.Body;
-import com.badlogic.gdx.physics.box2d.CircleShape;
 import com.badlogic.gdx.physics.box2d.Fixture;
-import com.badlogic.gdx.physics.box2d.PolygonShape;
-import com.badlogic.gdx.physics.box2d.Shape;
-import com.badlogic.gdx.physics.box2d.Transform;
 import com.badlogic.gdx.physics.box2d.World;
 import com.badlogic.gdx.physics.box2d.QueryCallback;
 
-public class Liquid {
-	
-	private class Particle
-	{
-		private Vector2 position;
-	    private Vector2 velocity;
-	    private boolean alive;
-	    private int index;
-	    
-	    private FloatArray distances;
-	    private IntArray neighbors;
-	    private int neighborCount;
-	    
-	    private int ci;		//keep track of the grid coordinates
-	    private int cj;
-	    
-	    private float p;
-	    private float pnear;
-	    
-	    private static final int MAX_FIXTURES_TO_TEST = 20;
-	    private final Array<Fixture> fixturesToTest;
-	    private int numFixturesToTest;
-	    private final Array<Vector2> collisionVertices;
-	    private final Array<Vector2> collisionNormals;
-
-	    private Particle(Vector2 position, Vector2 velocity, boolean alive) {
-	        this.position = position;
-	        this.velocity = velocity;
-	        this.alive = alive;
-	        
-	        distances = new FloatArray(MAX_NEIGHBORS);
-	        neighbors = new IntArray(MAX_NEIGHBORS);
-	        
-	        fixturesToTest = new Array<Fixture>(MAX_FIXTURES_TO_TEST);
-	        collisionVertices = new Array<Vector2>(8);
-	        collisionNormals = new Array<Vector2>(8);
-	        
-	        for (int i=0; i<MAX_FIXTURES_TO_TEST; i++) fixturesToTest.add(null);
-	        for (int i=0; i<8; i++){
-	        	collisionVertices.add(new Vector2());
-	        	collisionNormals.add(new Vector2());
-	        }
-	        
-	    }
-	}
+/**
+ * The particle simulation. Has no rendering or input of its own: particles come from
+ * {@link Emitter}s and magnets are added and moved by the caller, then {@link #step()}
+ * advances the liquid by one time step. Drawing is done by {@link LiquidRenderer} from
+ * the front {@link ParticleSnapshot}, so a step may run on another thread meanwhile.
+ */
+public class Liquid implements Disposable {
 	
 	public static final int MAX_PARTICLES = 3000;
 	public static final float RADIUS = 0.9f;
 	private static final float VISCOSITY = 0.004f;
 	
-	private static final float CHARGE = 6E-20f;
-	
 	private static final float IDEAL_RADIUS = 50f;
 	private static final float MULTIPLIER = IDEAL_RADIUS / RADIUS;
 	private static final float IDEAL_RADIUS_SQ = IDEAL_RADIUS * IDEAL_RADIUS;
@@ -91,75 +29,150 @@ public class Liquid {
 	public static final float CELL_SIZE = 0.6f;
 	
 	private static final int MAX_NEIGHBORS = 75;
+	//steps over which the particles above a lowered budget are removed
+	private static final int SHED_STEPS = 60;
 	
-	private static final Object LOCK = new Object();
+	//quality settings, see QualityGovernor
+	private int particleBudget;
+	//particles above the budget removed per step
+	private int shedPerStep;
+	private int neighborLimit = MAX_NEIGHBORS;
+	private float spawnRateScale = 1f;
 	
 	private int activeParticleCount;
-	private Array<Particle> liquid;
+	public final ParticleStore particles;
 	public IntArray activeParticles;
+	//position of every active particle in activeParticles
+	private int[] activeSlot;
+	//the store is not shrunk below its initial capacity
+	private final int minimumCapacity;
 	
-	private Array<Vector2> delta;
-	private final Array<Vector2> scaledPositions;
-	private final Array<Vector2> scaledVelocities;
-	private Array<IntMap<Vector2>> accumulatedDeltas;
+	//steps between two compactions, 0 disables them
+	private int compactionInterval = 120;
+	private int stepsSinceCompaction;
+	private int compactions;
+	//particles in the order of their cells, new index of every old one
+	private int[] order, moved;
+	//new index of every particle after the compactions since the last published snapshot
+	private int[] remap;
+	private boolean remapped;
 	
-	private final Vector2 gravity = new Vector2(0, -9.81f/3000f);
+	//velocities are in distance per step, so accelerations scale with the square of the time step
+	private static final Vector2 GRAVITY = new Vector2(0, -9.81f/3000f);
+	private final Vector2 gravity = new Vector2(GRAVITY);
+	private float timeStep = GameScreen.DT;
+	private float accelerationScale = 1f;
 	private final AABB simulationAABB;
 	private final World world;
 	
-	private Vector2 jitter;
+	private final Vector2 jitter;
 	
+	public final Array<Emitter> emitters;
 	public final Array<Magnet> magnets;
+	//the magnets as they were at the start of the step
+	private final MagnetField magnetField = new MagnetField();
+	
+	//Collision detection
+	private final QueryCallback collisionCallback;
+	private final FixtureCache fixtures = new FixtureCache(16);
+	//fixture broadphase, cells are 2^FIXTURE_CELL_SHIFT particle cells wide
+	private static final int FIXTURE_CELL_SHIFT = 2;
+	private final SpatialGrid fixtureGrid = new SpatialGrid(64);
+	//particle grid cells covered by each fixture as lower x, lower y, upper x, upper y
+	private int[] fixtureCells = new int[16*4];
+	private final int[] fixtureOverflows;
+	private int fixtureOverflowCount;
 	
 	//Multithreading
-    private final ExecutorService service;
-    private final List<Callable<Integer>> prepareTasks, pressureTasks, forcesTasks, collisionTasks;
+    private final ChunkedScheduler scheduler;
+    //whether the scheduler was created for this liquid and is disposed with it
+    private final boolean ownsScheduler;
+    private ChunkedScheduler.RangeTask prepareStage, pressureStage, forcesStage, reduceStage, collisionStage, moveStage;
+    //per worker delta accumulators of the forces stage, summed up by the reduce stage
+    private final float[][] accumulatedDeltaX, accumulatedDeltaY;
+    
+    //Fused kernel: neighbor search and density in one pass, neighbors kept in compact per worker buffers
+    private boolean fusedKernel;
+    private ChunkedScheduler.RangeTask fusedPressureStage, fusedForcesStage;
+    private final int[][] fusedNeighbors;
+    private final float[][] fusedDistances;
+    private final int[] fusedNeighborSize;
+    private int[] fusedNeighborWorker, fusedNeighborStart;
+    
+    //Verlet lists: neighbors within the ideal radius plus a skin, kept until a particle moved half the skin
+    private float verletSkin;
+    private boolean rebuildNeighbors = true;
+    //whether particles were removed since the last step, their indices have to leave the lists
+    private boolean particlesRemoved, purgeNeighbors;
+    //positions at the last build of every particle's list
+    private float[] verletX, verletY;
+    //per worker, the cells around the one whose lists are built
+    private final int[][] nearbyCells;
+    private ChunkedScheduler.RangeTask verletStage;
+    //particles spawned since the last step, they get lists of their own and join their neighbors' lists
+    private final IntArray spawnedParticles = new IntArray();
+    private boolean[] spawned;
 	
 	//Spatial Partitioning grid for dynamic meshing
-	public IntMap<IntMap<IntArray>> grid;
-	private Model model;
-	private ModelInstance instance;
+	public final SpatialGrid grid;
+	
+	//positions for the renderers, the back one is written after every step
+	private ParticleSnapshot frontSnapshot, backSnapshot;
 	
 	public Liquid(World world){
+		this(world, MAX_PARTICLES);
+	}
+	
+	/** Creates a liquid with a scheduler of its own over all cores, which {@link #dispose()} shuts down. */
+	public Liquid(World world, int capacity){
+		this(world, capacity, new ChunkedScheduler(Runtime.getRuntime().availableProcessors(), 
+				ChunkedScheduler.DEFAULT_CHUNK_SIZE), true);
+	}
+	
+	/** Creates a liquid whose stages run on a shared scheduler, the owner of it has to shut it down. */
+	public Liquid(World world, int capacity, ChunkedScheduler scheduler){
+		this(world, capacity, scheduler, false);
+	}
+	
+	private Liquid(World world, int capacity, ChunkedScheduler scheduler, boolean ownsScheduler){
 		//Multithreading
-		int threads = Runtime.getRuntime().availableProcessors();
+		this.scheduler = scheduler;
+		this.ownsScheduler = ownsScheduler;
 		
-		System.out.println(threads+" threads available");
+		accumulatedDeltaX = new float[scheduler.getWorkerCount()][capacity];
+		accumulatedDeltaY = new float[scheduler.getWorkerCount()][capacity];
 		
-		service = Executors.newFixedThreadPool(threads);
-		prepareTasks = new ArrayList<Callable<Integer>>(MAX_PARTICLES);
-		pressureTasks = new ArrayList<Callable<Integer>>(MAX_PARTICLES);
-		forcesTasks = new ArrayList<Callable<Integer>>(MAX_PARTICLES);
-		collisionTasks = new ArrayList<Callable<Integer>>(MAX_PARTICLES);
+		int workers = scheduler.getWorkerCount();
+		fixtureOverflows = new int[workers];
+		nearbyCells = new int[workers][0];
+		fusedNeighbors = new int[workers][];
+		fusedDistances = new float[workers][];
+		fusedNeighborSize = new int[workers];
+		for (int w=0; w<workers; w++){
+			fusedNeighbors[w] = new int[capacity*8/workers + MAX_NEIGHBORS];
+			fusedDistances[w] = new float[fusedNeighbors[w].length];
+		}
+		fusedNeighborWorker = new int[capacity];
+		fusedNeighborStart = new int[capacity];
+		verletX = new float[capacity];
+		verletY = new float[capacity];
+		spawned = new boolean[capacity];
 		
 		setupThreadedLoops();
 		
 		//Particle System		
-		activeParticles = new IntArray(MAX_PARTICLES);
-		liquid = new Array<Particle>(MAX_PARTICLES);
-		delta = new Array<Vector2>(MAX_PARTICLES);
-		scaledPositions = new Array<Vector2>(MAX_PARTICLES);
-		scaledVelocities = new Array<Vector2>(MAX_PARTICLES);
-		
-		grid = new IntMap<IntMap<IntArray>>();
-		accumulatedDeltas = new Array<IntMap<Vector2>>(MAX_PARTICLES);
-		
-		for (int i = 0; i<MAX_PARTICLES; i++){
-		    liquid.add(new Particle(new Vector2(), new Vector2(), false));
-		    liquid.get(i).index = i;
-		    
-		    scaledPositions.add(new Vector2());
-	        scaledVelocities.add(new Vector2());
-	        delta.add(new Vector2());
-		    
-		    accumulatedDeltas.add(new IntMap<Vector2>(MAX_NEIGHBORS+1));
-		}
+		activeParticles = new IntArray(capacity);
+		activeSlot = new int[capacity];
+		particles = new ParticleStore(capacity, MAX_NEIGHBORS);
+		minimumCapacity = capacity;
+		order = new int[capacity];
+		moved = new int[capacity];
+		remap = new int[capacity];
+		particleBudget = capacity;
 		
-		ModelBuilder modelBuilder = new ModelBuilder();
-        model = modelBuilder.createSphere(0.1f, 0.1f, 0.1f, 4, 4,
-                new Material(ColorAttribute.createDiffuse(Color.BLUE)),
-                Usage.Position | Usage.Normal);
-        instance = new ModelInstance(model);
+		grid = new SpatialGrid(capacity);
+		frontSnapshot = new ParticleSnapshot(capacity);
+		backSnapshot = new ParticleSnapshot(capacity);
 		
 		jitter = new Vector2();
 		
@@ -169,463 +182,1098 @@ public class Liquid {
 		simulationAABB = new AABB(lower, upper);
 		this.world = world;
 		
+		emitters = new Array<Emitter>();
 		magnets = new Array<Magnet>();
-		magnets.add(new Magnet(world, new Vector2()));
+		
+		collisionCallback = new QueryCallback(){
+	    	public boolean reportFixture(Fixture fixture){
+	    		fixtures.update(fixture);
+	    		return true;
+	    	}
+	    };
 	}
 	
 	private int getGridX(float x) { return (int)Math.floor(x / CELL_SIZE); }
 	private int getGridY(float y) { return (int)Math.floor(y / CELL_SIZE); }
 	
-	private void prepareSimulation(int index){
-		Particle particle = liquid.get(index);
+	private void prepareSimulation(int index, int worker){
+		final ParticleStore ps = particles;
 		
-		// Find neighbors
-        findNeighbors(particle);
+		// Find neighbors, the Verlet lists are rebuilt by cell or only updated where needed
+		if (verletSkin == 0f) findNeighbors(index);
+		else if (!rebuildNeighbors) updateNeighbors(index);
         
         // Scale positions and velocities
-        scaledPositions.get(index).set(particle.position.cpy().scl(MULTIPLIER));
-        scaledVelocities.get(index).set(particle.velocity.cpy().scl(MULTIPLIER));
+        ps.scaledPositionX[index] = ps.positionX[index] * MULTIPLIER;
+        ps.scaledPositionY[index] = ps.positionY[index] * MULTIPLIER;
+        ps.scaledVelocityX[index] = ps.velocityX[index] * MULTIPLIER;
+        ps.scaledVelocityY[index] = ps.velocityY[index] * MULTIPLIER;
 
         // Reset deltas
-        delta.get(index).set(0f, 0f);
-        accumulatedDeltas.get(index).clear();
+        ps.deltaX[index] = 0f;
+        ps.deltaY[index] = 0f;
         
         // Reset pressures
-        liquid.get(index).p = 0f;
-        liquid.get(index).pnear = 0f;
+        ps.pressure[index] = 0f;
+        ps.nearPressure[index] = 0f;
         
-        // Reset collision information
-        particle.numFixturesToTest = 0;
+        // Collect the fixtures to test
+        findFixturesToTest(index, worker);
 	}
 	
 	// prepareCollisions
 	private void prepareCollisions()
 	{
+		fixtures.begin();
+		
 	    // Query the world using the screen's AABB
-	    world.QueryAABB(new QueryCallback(){
-	    	public boolean reportFixture(Fixture fixture){
-	    		IntMap<IntArray> collisionGridX;
-	    	    IntArray collisionGridY;
-	    		
-	    		AABB aabb = new AABB();
-	            AABB.ccomputeAABB(fixture.getShape(), aabb, fixture.getBody().getTransform(), 0);
-	            
-//	            System.out.println(fixture.getShape());
-//	            System.out.println(aabb);
-
-	            // Get the bottom left corner of the AABB in grid coordinates
-	            int Ax = getGridX(aabb.lowerBound.x);
-	            int Ay = getGridY(aabb.lowerBound.y);
-
-	            // Get the top right corner of the AABB in grid coordinates
-	            int Bx = getGridX(aabb.upperBound.x) + 1;
-	            int By = getGridY(aabb.upperBound.y) + 1;
+	    world.QueryAABB(collisionCallback, simulationAABB.lowerBound.x, simulationAABB.lowerBound.y, 
+	    		simulationAABB.upperBound.x, simulationAABB.upperBound.y);
+	    
+	    fixtures.end();
+	    
+	    if (fixtures.isChanged()) updateFixtureGrid();
+	}
+	
+	// Sort the fixtures into coarse cells, covering all the particle cells their AABBs overlap
+	private void updateFixtureGrid(){
+		int count = fixtures.size();
+		if (fixtureCells.length < count*4) fixtureCells = new int[count*8];
+		
+		fixtureGrid.begin();
+		for (int slot=0; slot<count; slot++){
+			// Get the bottom left corner of the AABB in grid coordinates
+	        int Ax = fixtureCells[slot*4] = getGridX(fixtures.getLowerX(slot));
+	        int Ay = fixtureCells[slot*4+1] = getGridY(fixtures.getLowerY(slot));
 
-	            // Loop through all the grid cells in the fixture's AABB
-	            for (int i = Ax; i < Bx; i++){
-	                for (int j=Ay; j < By; j++){
-	                    if (grid.containsKey(i) && (collisionGridX = grid.get(i)).containsKey(j)){
-	                    	collisionGridY = collisionGridX.get(j);
-	                        // Tell any particles we find that this fixture should be tested
-	                        for (int k=0; k < collisionGridY.size; k++){
-	                            Particle particle = liquid.get(collisionGridY.get(k));
-	                            if (particle.numFixturesToTest < Particle.MAX_FIXTURES_TO_TEST){
-	                                particle.fixturesToTest.set(particle.numFixturesToTest, fixture);
-	                                particle.numFixturesToTest++;
-	                            }
-	                        }
-	                    }
-	                }
-	            }
-	    		return true;
-	    	}
-	    }, simulationAABB.lowerBound.x, simulationAABB.lowerBound.y, simulationAABB.upperBound.x, simulationAABB.upperBound.y);
+	        // Get the top right corner of the AABB in grid coordinates
+	        int Bx = fixtureCells[slot*4+2] = getGridX(fixtures.getUpperX(slot));
+	        int By = fixtureCells[slot*4+3] = getGridY(fixtures.getUpperY(slot));
+	        
+	        for (int i = Ax >> FIXTURE_CELL_SHIFT; i <= Bx >> FIXTURE_CELL_SHIFT; i++)
+	        	for (int j = Ay >> FIXTURE_CELL_SHIFT; j <= By >> FIXTURE_CELL_SHIFT; j++)
+	        		fixtureGrid.add(i, j, slot);
+		}
+		fixtureGrid.end();
+	}
+	
+	// Tell the particle which fixtures overlap its grid cell and should be tested
+	private void findFixturesToTest(int index, int worker){
+		final ParticleStore ps = particles;
+		final int ci = ps.cellX[index];
+		final int cj = ps.cellY[index];
+		final int offset = index*ParticleStore.MAX_FIXTURES_TO_TEST;
+		final int[] bounds = fixtureCells;
+		int count = 0;
+		
+		int cell = fixtureGrid.find(ci >> FIXTURE_CELL_SHIFT, cj >> FIXTURE_CELL_SHIFT);
+		if (cell >= 0){
+			for (int k=fixtureGrid.getCellStart(cell), end=fixtureGrid.getCellEnd(cell); k<end; k++){
+				int slot = fixtureGrid.getItem(k);
+				if (ci < bounds[slot*4] || cj < bounds[slot*4+1] || ci > bounds[slot*4+2] || cj > bounds[slot*4+3]) 
+					continue;
+				
+				if (count < ParticleStore.MAX_FIXTURES_TO_TEST) ps.fixturesToTest[offset + count++] = slot;
+				else fixtureOverflows[worker]++;
+			}
+		}
+		ps.numFixturesToTest[index] = count;
+	}
+	
+	/** @return how many particle-fixture candidates did not fit into the particles' lists in the last step */
+	public int getFixtureOverflowCount(){ return fixtureOverflowCount; }
+	
+	// Reported through Metrics, printing from the simulation thread would allocate every step it happens
+	private void countFixtureOverflows(){
+		int overflows = 0;
+		for (int w=0; w<fixtureOverflows.length; w++){
+			overflows += fixtureOverflows[w];
+			fixtureOverflows[w] = 0;
+		}
+		fixtureOverflowCount = overflows;
+		Metrics.count(Metrics.FIXTURE_OVERFLOWS, overflows);
 	}
 	
 	private void calculatePressure(int index){
-		Particle particle = liquid.get(index);
+		final ParticleStore ps = particles;
+		final float[] spx = ps.scaledPositionX;
+		final float[] spy = ps.scaledPositionY;
+		final float x = spx[index];
+		final float y = spy[index];
+		final int offset = index*ps.maxNeighbors;
+		final int count = ps.neighborCount[index];
+		float p = 0f;
+		float pnear = 0f;
 		
-        for (int a=0; a<particle.neighborCount; a++) {
-        	//System.out.println("a "+a+" index "+index);
-            float distanceSq = scaledPositions.get(particle.neighbors.get(a)).dst2(scaledPositions.get(index));
+        for (int a=0; a<count; a++) {
+        	int neighbor = ps.neighbors[offset+a];
+        	float dx = spx[neighbor] - x;
+        	float dy = spy[neighbor] - y;
+            float distanceSq = dx*dx + dy*dy;
 
             //within idealRad check
             if (distanceSq < IDEAL_RADIUS_SQ) {
-                particle.distances.set(a, (float)Math.sqrt(distanceSq));
+            	float distance = (float)Math.sqrt(distanceSq);
+                ps.distances[offset+a] = distance;
                 //if (particle.distances[a] < Settings.EPSILON) particle.distances[a] = IDEAL_RADIUS - .01f;
-                float oneminusq = 1.0f - (particle.distances.get(a) / IDEAL_RADIUS);
-                particle.p = (particle.p + oneminusq*oneminusq);
-                particle.pnear = (particle.pnear + oneminusq*oneminusq*oneminusq);
+                float oneminusq = 1.0f - (distance / IDEAL_RADIUS);
+                p = (p + oneminusq*oneminusq);
+                pnear = (pnear + oneminusq*oneminusq*oneminusq);
             } else {
-                particle.distances.set(a, Float.MAX_VALUE);
+                ps.distances[offset+a] = Float.MAX_VALUE;
             }
         }
+        
+        ps.pressure[index] = p;
+        ps.nearPressure[index] = pnear;
 	}
 	
-	private void calculateForces(int index){
-		Particle particle = liquid.get(index);
+	private void calculateForces(int index, final float[] accumulatedX, final float[] accumulatedY){
+		calculateForces(index, particles.neighbors, particles.distances, index*particles.maxNeighbors, 
+				particles.neighborCount[index], accumulatedX, accumulatedY);
+	}
+	
+	private void calculateForces(int index, final int[] neighbors, final float[] distances, final int offset, final int count,
+			final float[] accumulatedX, final float[] accumulatedY){
+		final ParticleStore ps = particles;
+		final float[] spx = ps.scaledPositionX;
+		final float[] spy = ps.scaledPositionY;
+		final float[] svx = ps.scaledVelocityX;
+		final float[] svy = ps.scaledVelocityY;
+		final float x = spx[index];
+		final float y = spy[index];
+		final float vx = svx[index];
+		final float vy = svy[index];
 		
-		float pressure = (particle.p - 5f) / 2.0f; //normal pressure term
-        float presnear = particle.pnear / 2.0f; //near particles term
-        Vector2 change = new Vector2(0f, 0f);
-        for (int a = 0; a < particle.neighborCount; a++)
+		float pressure = (ps.pressure[index] - 5f) / 2.0f; //normal pressure term
+        float presnear = ps.nearPressure[index] / 2.0f; //near particles term
+        float changeX = 0f;
+        float changeY = 0f;
+        for (int a = 0; a < count; a++)
         {
-        	Vector2 relativePosition = scaledPositions.get(particle.neighbors.get(a)).cpy().sub(scaledPositions.get(index));
+        	int neighbor = neighbors[offset+a];
+        	float distance = distances[offset+a];
 
-            if (particle.distances.get(a) < IDEAL_RADIUS)
+            if (distance < IDEAL_RADIUS)
             {
-                float q = particle.distances.get(a) / IDEAL_RADIUS;
+                float q = distance / IDEAL_RADIUS;
                 float oneminusq = 1.0f - q;
-                float factor = oneminusq * (pressure + presnear * oneminusq) / (2.0F * particle.distances.get(a));
-                Vector2 d = relativePosition.cpy().scl(factor);
-                Vector2 relativeVelocity = scaledVelocities.get(particle.neighbors.get(a)).cpy().sub(scaledVelocities.get(index));
-
-                factor = VISCOSITY * oneminusq * GameScreen.DT;
-                d.sub(relativeVelocity.cpy().scl(factor));
-                accumulatedDeltas.get(index).put(particle.neighbors.get(a), d.cpy());
-                change.sub(d);
+                float factor = oneminusq * (pressure + presnear * oneminusq) / (2.0F * distance) * accelerationScale;
+                float viscosity = VISCOSITY * oneminusq * timeStep;
+                float dx = (spx[neighbor] - x) * factor - (svx[neighbor] - vx) * viscosity;
+                float dy = (spy[neighbor] - y) * factor - (svy[neighbor] - vy) * viscosity;
+                accumulatedX[neighbor] += dx;
+                accumulatedY[neighbor] += dy;
+                changeX -= dx;
+                changeY -= dy;
             }
         }
-        accumulatedDeltas.get(index).put(index, change.cpy());
-        particle.velocity.add(gravity);
+        accumulatedX[index] += changeX;
+        accumulatedY[index] += changeY;
+        ps.velocityX[index] += gravity.x;
+        ps.velocityY[index] += gravity.y;
         
-        //Calculate electrostatic forces
-        for (Magnet magnet : magnets){
-        Vector2 distance = magnet.getTranslation().sub(particle.position);
-        if (distance.len()<10 && distance.len()>1){
-        	float coulombForce = (float) (CHARGE*magnet.charge/(distance.len2()*4*Math.PI));
-        	Vector2 force = distance.nor().scl(coulombForce);
-        	particle.velocity.add(force);
-        }
-        }
-	}
-	
-	private final static Vector2 cross(Vector2 a, float s) {
-	    return new Vector2(s * a.y, -s * a.x);
-	}
-	
-	private final static void computeNormals(PolygonShape shape, final Array<Vector2> out) throws IllegalArgumentException{
-		final Vector2 edge = new Vector2();
-		final Vector2 vec = new Vector2();
-
-	    // Compute normals. Ensure the edges have non-zero length.
-	    for (int i=0; i < shape.getVertexCount(); ++i) {
-	      final int i1 = i;
-	      final int i2 = i + 1 < shape.getVertexCount() ? i + 1 : 0;
-	      synchronized(LOCK){
-	      shape.getVertex(i2, edge);
-	      shape.getVertex(i1, vec);
-	      }
-	      edge.sub(vec);
-
-	      if(edge.len()==0 || cross(edge, 1f).len()==0) throw new IllegalArgumentException();
-	      out.get(i).set(cross(edge, 1f));
-	      out.get(i).nor();
-	    }
+        //Calculate electrostatic forces of the magnets in reach
+        magnetField.apply(ps, index, accelerationScale);
 	}
 	
 	private void resolveCollision(int index){
-	    final Particle particle = liquid.get(index);
+		final ParticleStore ps = particles;
+		final FixtureCache cache = fixtures;
+		final int fixtureOffset = index*ParticleStore.MAX_FIXTURES_TO_TEST;
+		final float[] vertices = cache.getVertices();
+		final float[] normals = cache.getNormals();
 	    
-//	    if (particle.numFixturesToTest>0)
-//	    System.out.println("Fixtures for particle "+index+": "+particle.numFixturesToTest);
+//	    if (ps.numFixturesToTest[index]>0)
+//	    System.out.println("Fixtures for particle "+index+": "+ps.numFixturesToTest[index]);
 
 	    // Test all fixtures stored in this particle
-	    for (int i=0; i < particle.numFixturesToTest; i++){
-	        Fixture fixture = particle.fixturesToTest.get(i);
+	    for (int i=0; i < ps.numFixturesToTest[index]; i++){
+	        int fixture = ps.fixturesToTest[fixtureOffset + i];
 
 	        // Determine where the particle will be after being moved
-	        Vector2 newPosition = particle.position.cpy().add(particle.velocity.cpy().add(delta.get(index)));
+	        float newX = ps.positionX[index] + ps.velocityX[index] + ps.deltaX[index];
+	        float newY = ps.positionY[index] + ps.velocityY[index] + ps.deltaY[index];
 
 	        // Test to see if the new particle position is inside the fixture
-	        if (fixture.testPoint(newPosition))
+	        if (cache.testPoint(fixture, newX, newY))
 	        {
-	            Body body = fixture.getBody();
-	            Vector2 closestPoint = new Vector2(0f, 0f);
-	            Vector2 normal = new Vector2(0f, 0f);
+	            float positionX = ps.positionX[index];
+	            float positionY = ps.positionY[index];
+	            float closestX = 0f, closestY = 0f;
+	            float normalX = 0f, normalY = 0f;
 
 	            // Resolve collisions differently based on what type of shape they are
-	            if (fixture.getType().equals(Shape.Type.Polygon))
+	            if (cache.getType(fixture) == FixtureCache.POLYGON)
 	            {
-	                PolygonShape shape = (PolygonShape) fixture.getShape();
-	                Transform collisionXF = body.getTransform();
-	                try{
-	                	computeNormals(shape, particle.collisionNormals);
-	                }catch(Exception e){
-	                	e.printStackTrace();
-	                }
-	                
-	                for (int v = 0; v < shape.getVertexCount(); v++)
-	                {
-	                    // Transform the shape's vertices from local space to world space
-	                	Vector2 vec = new Vector2();
-	                	synchronized(LOCK){		shape.getVertex(v, vec);}
-	                	particle.collisionVertices.get(v).set(collisionXF.mul(vec));
-	                	
-//	                	Vector2 offset=body.getLocalCenter().cpy().sub(particle.collisionVertices.get(v)).nor();
-//	                	offset.scl((float) Math.sqrt(0.005));
-//	                	particle.collisionVertices.get(v).add(offset);
-
-	                    // Transform the shape's normals rotation
-	                    particle.collisionNormals.get(v).rotate((float) Math.toDegrees(collisionXF.getRotation()));
-	                }
-
+	            	final int offset = cache.getOffset(fixture);
+	            	
 	                // Find closest edge
 	                float shortestDistance = 9999999f;
-	                for (int v = 0; v < shape.getVertexCount(); v++)
+	                for (int v = 0, n = cache.getVertexCount(fixture); v < n; v++)
 	                {
-	                	//System.out.println("Shape "+i+" Vertex "+v+": "+particle.collisionVertices.get(v)+
-	                	//" Normal: "+particle.collisionNormals.get(v));
+	                	float nx = normals[offset + v*2];
+	                	float ny = normals[offset + v*2 + 1];
 	                	
 	                    // Project the vertex position relative to the particle position onto the edge's normal to find the distance
-	                    float distance = particle.collisionNormals.get(v)
-	                    		.dot(particle.collisionVertices.get(v).cpy().sub(particle.position));
+	                    float distance = nx * (vertices[offset + v*2] - positionX)
+	                    		+ ny * (vertices[offset + v*2 + 1] - positionY);
 	                    if (distance < shortestDistance)
 	                    {
 	                        // Store the shortest distance
 	                        shortestDistance = distance;
 
 	                        // Push the particle out of the shape in the direction of the closest edge's normal
-	                        closestPoint.set(particle.collisionNormals.get(v).cpy().scl(distance).add(particle.position));
-	                        normal.set(particle.collisionNormals.get(v));
+	                        closestX = nx * distance + positionX;
+	                        closestY = ny * distance + positionY;
+	                        normalX = nx;
+	                        normalY = ny;
 	                    }
 	                }
-	                particle.position.set(closestPoint.cpy().add(normal.cpy().scl(0.05f)));
 	            }
-	            else if (fixture.getType().equals(Shape.Type.Circle))
+	            else
 	            {
 	                // Push the particle out of the circle by normalizing the circle's center relative to the particle position,
 	                // and pushing the particle out in the direction of the normal
-	                CircleShape shape = (CircleShape) fixture.getShape();
-	                Vector2 center = shape.getPosition().cpy().add(body.getPosition());
-	                Vector2 difference = particle.position.cpy().sub(center);
-	                normal.set(difference);
-	                normal.nor();
-	                closestPoint.set(center.cpy().add(difference.scl(shape.getRadius() / difference.len())));
-	                //System.out.println("Old: "+particle.position+" New: "+closestPoint.cpy().add(normal.cpy().scl(0.05f)));
-	                particle.position.set(closestPoint.cpy().add(normal.cpy().scl(0.05f)));
+	                float centerX = cache.getCircleX(fixture);
+	                float centerY = cache.getCircleY(fixture);
+	                float radius = cache.getCircleRadius(fixture);
+	                float differenceX = positionX - centerX;
+	                float differenceY = positionY - centerY;
+	                float len = (float)Math.sqrt(differenceX*differenceX + differenceY*differenceY);
+	                normalX = differenceX / len;
+	                normalY = differenceY / len;
+	                closestX = centerX + normalX * radius;
+	                closestY = centerY + normalY * radius;
 	            }
+	            
+	            ps.positionX[index] = closestX + normalX * 0.05f;
+	            ps.positionY[index] = closestY + normalY * 0.05f;
 
 	            // Update velocity
-	            particle.velocity.sub(normal.cpy().scl(particle.velocity.dot(normal)*1.2f));
+	            float dot = (ps.velocityX[index]*normalX + ps.velocityY[index]*normalY)*1.2f;
+	            ps.velocityX[index] -= normalX * dot;
+	            ps.velocityY[index] -= normalY * dot;
 
 	            // Reset delta
-	            delta.get(index).set(0f, 0f);
+	            ps.deltaX[index] = 0f;
+	            ps.deltaY[index] = 0f;
 	        }
 	    }
 	}
 	
 	private void moveParticle(int index){
-		Particle particle = liquid.get(index);
-		int x = getGridX(particle.position.x);
-        int y = getGridY(particle.position.y);
+		final ParticleStore ps = particles;
         
         //Update velocity
-        particle.velocity.add(delta.get(index));
+        ps.velocityX[index] += ps.deltaX[index];
+        ps.velocityY[index] += ps.deltaY[index];
         // Update Position
-        particle.position.add(delta.get(index));
-        particle.position.add(particle.velocity);
-        
-        // Update particle cell
-        if (particle.ci == x && particle.cj == y)
-            return;
-        else
-        {
-        	grid.get(particle.ci).get(particle.cj).removeValue(index);
-
-            if (grid.get(particle.ci).get(particle.cj).size == 0){
-            	grid.get(particle.ci).remove(particle.cj);
-
-                if (grid.get(particle.ci).size == 0){
-                    grid.remove(particle.ci);
-                }
-            }
-
-            if (!grid.containsKey(x))
-                grid.put(x, new IntMap<IntArray>());
-            if (!grid.get(x).containsKey(y))
-                grid.get(x).put(y, new IntArray(20));
-
-            grid.get(x).get(y).add(index);
-            particle.ci = x;
-            particle.cj = y;
-        }
+        ps.positionX[index] += ps.deltaX[index] + ps.velocityX[index];
+        ps.positionY[index] += ps.deltaY[index] + ps.velocityY[index];
 	}
 	
-	private void findNeighbors(Particle particle){
-	    particle.neighborCount = 0;
+	private void findNeighbors(int index){
+		final ParticleStore ps = particles;
+		final int offset = index*ps.maxNeighbors;
+		int count = 0;
 	    
-	    IntMap<IntArray> gridX;
-	    IntArray gridY;
-
 	    for (int nx=-1; nx<2; nx++){
 	        for (int ny=-1; ny<2; ny++){
-	            int x = particle.ci + nx;
-	            int y = particle.cj + ny;
-	            if (grid.containsKey(x) && (gridX = grid.get(x)).containsKey(y)){
-	            	gridY = gridX.get(y);
-	                for (int a=0; a<gridY.size; a++){
-	                    if (gridY.get(a) != particle.index){
-	                    	if (particle.neighbors.size<particle.neighborCount+1){                    	
-		                    	particle.neighbors.add(gridY.get(a));
-		                        particle.distances.add(0f);
-	                    	}else 
-	                    		particle.neighbors.set(particle.neighborCount, gridY.get(a));
-	                        particle.neighborCount++;
+	            int cell = grid.find(ps.cellX[index] + nx, ps.cellY[index] + ny);
+	            if (cell >= 0){
+	                for (int a=grid.getCellStart(cell), end=grid.getCellEnd(cell); a<end; a++){
+	                	int neighbor = grid.getItem(a);
+	                    if (neighbor != index){
+	                    	ps.neighbors[offset+count] = neighbor;
+	                        count++;
 
-	                        if (particle.neighborCount >= MAX_NEIGHBORS)
+	                        if (count >= neighborLimit){
+	                        	ps.neighborCount[index] = count;
 	                            return;
+	                        }
 	                    }
 	                }
 	            }
 	        }
 	    }
+	    ps.neighborCount[index] = count;
+	}
+	
+	// Build the Verlet lists of all particles in a cell, the cells in reach are looked up once for all of them
+	private void findCellNeighbors(int cell, float radius, int worker){
+		final ParticleStore ps = particles;
+		final float[] px = ps.positionX;
+		final float[] py = ps.positionY;
+		final float radiusSq = radius*radius;
+		final int reach = (int)Math.ceil(radius / CELL_SIZE);
+		final int cellX = grid.getCellX(cell);
+		final int cellY = grid.getCellY(cell);
+		final int[] nearby = nearbyCells[worker];
+		final int limit = neighborLimit;
+		
+		int cells = 0;
+		for (int nx=-reach; nx<=reach; nx++){
+			for (int ny=-reach; ny<=reach; ny++){
+				int other = grid.find(cellX + nx, cellY + ny);
+				if (other >= 0) nearby[cells++] = other;
+			}
+		}
+		
+		for (int p=grid.getCellStart(cell), last=grid.getCellEnd(cell); p<last; p++){
+			final int index = grid.getItem(p);
+			final float x = px[index];
+			final float y = py[index];
+			final int offset = index*ps.maxNeighbors;
+			int count = 0;
+			
+			search:
+			for (int c=0; c<cells; c++){
+				for (int a=grid.getCellStart(nearby[c]), end=grid.getCellEnd(nearby[c]); a<end; a++){
+					int neighbor = grid.getItem(a);
+					if (neighbor == index) continue;
+					
+					float dx = px[neighbor] - x;
+					float dy = py[neighbor] - y;
+					if (dx*dx + dy*dy >= radiusSq) continue;
+					
+					ps.neighbors[offset+count] = neighbor;
+					count++;
+					if (count >= limit) break search;
+				}
+			}
+			ps.neighborCount[index] = count;
+			verletX[index] = x;
+			verletY[index] = y;
+		}
+	}
+	
+	// Between rebuilds only the lists of spawned particles are built and the removed ones are dropped
+	private void updateNeighbors(int index){
+		if (spawned[index]) findNeighbors(index, RADIUS + verletSkin*1.5f);
+		else if (purgeNeighbors) purgeNeighbors(index);
+	}
+	
+	// Verlet list of a single particle, with all particles within the radius
+	private void findNeighbors(int index, float radius){
+		final ParticleStore ps = particles;
+		final float[] px = ps.positionX;
+		final float[] py = ps.positionY;
+		final float x = px[index];
+		final float y = py[index];
+		final float radiusSq = radius*radius;
+		final int reach = (int)Math.ceil(radius / CELL_SIZE);
+		final int offset = index*ps.maxNeighbors;
+		final int limit = neighborLimit;
+		int count = 0;
+		
+		search:
+		for (int nx=-reach; nx<=reach; nx++){
+			for (int ny=-reach; ny<=reach; ny++){
+				int cell = grid.find(ps.cellX[index] + nx, ps.cellY[index] + ny);
+				if (cell < 0) continue;
+				
+				for (int a=grid.getCellStart(cell), end=grid.getCellEnd(cell); a<end; a++){
+					int neighbor = grid.getItem(a);
+					if (neighbor == index) continue;
+					
+					float dx = px[neighbor] - x;
+					float dy = py[neighbor] - y;
+					if (dx*dx + dy*dy >= radiusSq) continue;
+					
+					ps.neighbors[offset+count] = neighbor;
+					count++;
+					if (count >= limit) break search;
+				}
+			}
+		}
+		ps.neighborCount[index] = count;
+		verletX[index] = x;
+		verletY[index] = y;
+	}
+	
+	// Drop the removed and the spawned particles from a Verlet list, the spawned ones may have taken a removed one's index
+	private void purgeNeighbors(int index){
+		final ParticleStore ps = particles;
+		final int offset = index*ps.maxNeighbors;
+		final int count = ps.neighborCount[index];
+		int kept = 0;
+		for (int a=0; a<count; a++){
+			int neighbor = ps.neighbors[offset+a];
+			if (ps.alive[neighbor] && !spawned[neighbor]) ps.neighbors[offset + kept++] = neighbor;
+		}
+		ps.neighborCount[index] = kept;
 	}
 	
-	public Vector2 getPos(int index){ return liquid.get(index).position.cpy(); }
+	/**
+	 * Fused first pass: prepares the particle, finds its neighbors and accumulates its density in one go.
+	 * Only neighbors within the ideal radius are kept, appended to the worker's neighbor buffer.
+	 */
+	private void prepareAndCalculatePressure(int index, int worker){
+		final ParticleStore ps = particles;
+		final float[] px = ps.positionX;
+		final float[] py = ps.positionY;
+		final float x = px[index] * MULTIPLIER;
+		final float y = py[index] * MULTIPLIER;
+		final int limit = neighborLimit;
+		
+		int size = fusedNeighborSize[worker];
+		if (size + limit > fusedNeighbors[worker].length) growFusedBuffer(worker);
+		final int[] neighbors = fusedNeighbors[worker];
+		final float[] distances = fusedDistances[worker];
+		
+		final int start = size;
+		float p = 0f;
+		float pnear = 0f;
+		
+		search:
+		for (int nx=-1; nx<2; nx++){
+	        for (int ny=-1; ny<2; ny++){
+	            int cell = grid.find(ps.cellX[index] + nx, ps.cellY[index] + ny);
+	            if (cell < 0) continue;
+	            
+	            for (int a=grid.getCellStart(cell), end=grid.getCellEnd(cell); a<end; a++){
+	            	int neighbor = grid.getItem(a);
+	            	if (neighbor == index) continue;
+	            	
+	            	float dx = px[neighbor] * MULTIPLIER - x;
+	            	float dy = py[neighbor] * MULTIPLIER - y;
+	            	float distanceSq = dx*dx + dy*dy;
+	            	if (distanceSq >= IDEAL_RADIUS_SQ) continue;
+	            	
+	            	float distance = (float)Math.sqrt(distanceSq);
+	            	float oneminusq = 1.0f - (distance / IDEAL_RADIUS);
+	            	p = (p + oneminusq*oneminusq);
+	            	pnear = (pnear + oneminusq*oneminusq*oneminusq);
+	            	
+	            	neighbors[size] = neighbor;
+	            	distances[size] = distance;
+	            	size++;
+	            	if (size - start >= limit) break search;
+	            }
+	        }
+		}
+		fusedNeighborSize[worker] = size;
+		fusedNeighborWorker[index] = worker;
+		fusedNeighborStart[index] = start;
+		ps.neighborCount[index] = size - start;
+		
+		// Scale positions and velocities
+        ps.scaledPositionX[index] = x;
+        ps.scaledPositionY[index] = y;
+        ps.scaledVelocityX[index] = ps.velocityX[index] * MULTIPLIER;
+        ps.scaledVelocityY[index] = ps.velocityY[index] * MULTIPLIER;
+        
+        ps.pressure[index] = p;
+        ps.nearPressure[index] = pnear;
+        
+        // Collect the fixtures to test
+        findFixturesToTest(index, worker);
+	}
+	
+	private void growFusedBuffer(int worker){
+		Metrics.countAllocation();
+		int size = fusedNeighbors[worker].length*2;
+		int[] neighbors = new int[size];
+		float[] distances = new float[size];
+		System.arraycopy(fusedNeighbors[worker], 0, neighbors, 0, fusedNeighborSize[worker]);
+		System.arraycopy(fusedDistances[worker], 0, distances, 0, fusedNeighborSize[worker]);
+		fusedNeighbors[worker] = neighbors;
+		fusedDistances[worker] = distances;
+	}
 	
 	public void createParticle(int numParticlesToSpawn, Vector2 mouse)
 	{
-	    Array<Particle> inactiveParticles = new Array<Particle>(MAX_PARTICLES-activeParticleCount);
-	    for (Particle p : liquid) if (!p.alive) inactiveParticles.add(p);
-	    if (inactiveParticles.size>=numParticlesToSpawn)
-	    	inactiveParticles.truncate(numParticlesToSpawn);
-
-	    for (Particle particle : inactiveParticles)
+		createParticle(numParticlesToSpawn, mouse, Float.POSITIVE_INFINITY);
+	}
+	
+	/** Spawns particles around a position that are removed after the given number of seconds. */
+	public void createParticle(int numParticlesToSpawn, Vector2 mouse, float lifetime)
+	{
+	    for (int i=0; i<numParticlesToSpawn; i++)
 	    {
-	            jitter.set((float)(Math.random() * 2 - 1), (float)(Math.random()) - 0.5f);
-
-	            particle.position.set(mouse.cpy().add(jitter));
-	            particle.velocity.set(0f, 0f);
-	            particle.alive = true;
-	            particle.ci = getGridX(particle.position.x);
-	            particle.cj = getGridY(particle.position.y);
-
-	            // Create grid cell if necessary
-	            if (!grid.containsKey(particle.ci))
-	            	grid.put(particle.ci, new IntMap<IntArray>());
-	            if (!grid.get(particle.ci).containsKey(particle.cj))
-	            	grid.get(particle.ci).put(particle.cj, new IntArray());
-	            
-	            grid.get(particle.ci).get(particle.cj).add(particle.index);
-
-	            activeParticles.add(particle.index);
-	            activeParticleCount++; 
-	        
+	    	jitter.set((float)(Math.random() * 2 - 1), (float)(Math.random()) - 0.5f);
+	    	
+	    	if (activeParticleCount >= particleBudget) break;
+	    	int index = spawnParticle(mouse.x + jitter.x, mouse.y + jitter.y);
+	    	particles.lifetime[index] = lifetime;
 	    }
 	    
 	    //System.out.println("Active particles: "+activeParticleCount);
 	}
 	
-	public void draw(ModelBatch batch)
+	/** 
+	 * Spawns a particle, growing the particle store if it is full. Must not be called while a step is running.
+	 * @return the index of the new particle 
+	 */
+	public int spawnParticle(float x, float y)
 	{
-	    for (int i=0; i<activeParticleCount; i++)
-	    {
-	    	//if (i>0) break;
-	        Particle particle = liquid.get(activeParticles.get(i));
-	        //if (particle.index==0) System.out.println("Particle "+particle.index+": x = "
-	        //+particle.position.x+" y = "+particle.position.y);
-	        instance.transform.setToTranslation(particle.position.x, particle.position.y, 0f);
-	        batch.render(instance);
-	    }
+		final ParticleStore ps = particles;
+		
+		int capacity = ps.capacity;
+		int index = ps.allocate();
+		if (ps.capacity != capacity) resizeParticleArrays();
+		
+		ps.positionX[index] = x;
+		ps.positionY[index] = y;
+		ps.velocityX[index] = 0f;
+		ps.velocityY[index] = 0f;
+		ps.lifetime[index] = Float.POSITIVE_INFINITY;
+		
+		activeSlot[index] = activeParticleCount;
+		activeParticles.add(index);
+		activeParticleCount++;
+		
+		if (verletSkin > 0f && !fusedKernel && !spawned[index]){
+			spawned[index] = true;
+			spawnedParticles.add(index);
+		}
+		return index;
 	}
 	
-	public void update(float tpf, Vector3 touchPos){
-		magnets.get(0).setTranslation(touchPos.x, touchPos.y);
-		if (Gdx.input.isTouched() && Gdx.input.isButtonPressed(Input.Buttons.RIGHT)) {
-			boolean intersect=false;
-			if (magnets.size>1) for (int i=1; i<magnets.size; i++){
-				if (magnets.get(0).overlaps(magnets.get(i))) intersect=true;
-			}
+	/** 
+	 * Removes a particle. The last active particle takes its place in {@link #activeParticles}.
+	 * Must not be called while a step is running.
+	 * @return false if the particle was not alive
+	 */
+	public boolean removeParticle(int index){
+		final ParticleStore ps = particles;
+		if (index < 0 || index >= ps.capacity || !ps.alive[index]) return false;
+		
+		int slot = activeSlot[index];
+		int last = activeParticles.pop();
+		if (last != index){
+			activeParticles.set(slot, last);
+			activeSlot[last] = slot;
+		}
+		activeParticleCount--;
+		ps.release(index);
+		particlesRemoved = true;
+		return true;
+	}
+	
+	/** 
+	 * Sets the seconds until a particle is removed, infinite by default. 
+	 * A lifetime of 0 removes it at the start of the next step.
+	 */
+	public void setLifetime(int index, float seconds){
+		particles.lifetime[index] = seconds;
+	}
+	
+	public float getLifetime(int index){ return particles.lifetime[index]; }
+	
+	// Remove the particles whose lifetime ran out and the ones that left the simulated area,
+	// they would cost neighbor search and collision tests forever
+	private void cullParticles(){
+		final ParticleStore ps = particles;
+		final float[] lifetime = ps.lifetime;
+		final float dt = timeStep;
+		final float lowerX = simulationAABB.lowerBound.x, lowerY = simulationAABB.lowerBound.y;
+		final float upperX = simulationAABB.upperBound.x, upperY = simulationAABB.upperBound.y;
+		
+		// Backwards, so the particles swapped into removed slots were already checked
+		for (int i=activeParticleCount-1; i>=0; i--){
+			int index = activeParticles.get(i);
+			float x = ps.positionX[index];
+			float y = ps.positionY[index];
+			lifetime[index] -= dt;
+			if (lifetime[index] <= 0f || x < lowerX || y < lowerY || x > upperX || y > upperY) removeParticle(index);
+		}
+		
+		// Then the surplus above the budget from the end of the list, i.e. the particles spawned last
+		// or, after a compaction, the topmost ones
+		int surplus = Math.min(activeParticleCount - particleBudget, shedPerStep);
+		for (int i=0; i<surplus; i++) removeParticle(activeParticles.get(activeParticleCount-1));
+	}
+	
+	/** Sets after how many steps the particles are renumbered by grid cell, 0 disables it. */
+	public void setCompactionInterval(int steps){
+		compactionInterval = Math.max(0, steps);
+	}
+	
+	public int getCompactionInterval(){ return compactionInterval; }
+	
+	// Renumber the particles cell by cell with the cells sorted row by row, so the particles of a cell
+	// and their neighbors, those above and below too, lie close in memory and there are no holes left
+	private void compactParticles(){
+		final ParticleStore ps = particles;
+		final int capacity = ps.capacity;
+		if (order.length < capacity){
+			order = new int[capacity];
+			moved = new int[capacity];
+		}
+		
+		updateGrid();
+		grid.sortCells();
+		int count = 0;
+		for (int rank=0, n=grid.getCellCount(); rank<n; rank++){
+			int cell = grid.getSortedCell(rank);
+			for (int a=grid.getCellStart(cell), end=grid.getCellEnd(cell); a<end; a++)
+				order[count++] = grid.getItem(a);
+		}
+		ps.reorder(order, count);
+		
+		for (int index=0; index<capacity; index++) moved[index] = -1;
+		for (int i=0; i<count; i++){
+			moved[order[i]] = i;
+			activeParticles.set(i, i);
+			activeSlot[i] = i;
+		}
+		
+		// Compose with the compactions since the last published snapshot
+		if (!remapped){
+			if (remap.length < capacity) remap = new int[capacity];
+			for (int index=0; index<remap.length; index++) remap[index] = index;
+			remapped = true;
+		}
+		for (int index=0; index<remap.length; index++){
+			int current = remap[index];
+			remap[index] = current >= 0 && current < capacity ? moved[current] : -1;
+		}
+		compactions++;
+		rebuildNeighbors = true;
+	}
+	
+	// Give the memory back once most of the particles died, by moving the ones at high indices down
+	private void trimParticles(){
+		final ParticleStore ps = particles;
+		int capacity = ps.capacity;
+		if (capacity <= minimumCapacity || activeParticleCount >= capacity/4) return;
+		
+		int newCapacity = Math.max(minimumCapacity, capacity/2);
+		int free = 0;
+		for (int i=0; i<activeParticleCount; i++){
+			int index = activeParticles.get(i);
+			if (index < newCapacity) continue;
 			
-			if (!intersect && AABB.testOverlap(simulationAABB, magnets.get(0).getAABB()))
-				magnets.add(new Magnet(world, magnets.get(0).getTranslation()));
-			//System.out.println("Input: x = "+pos.x+" y = "+pos.y);
+			while (ps.alive[free]) free++;
+			ps.move(index, free);
+			activeParticles.set(i, free);
+			activeSlot[free] = i;
+		}
+		ps.resize(newCapacity);
+		resizeParticleArrays();
+	}
+	
+	// Follow the capacity of the particle store with the arrays kept per particle
+	private void resizeParticleArrays(){
+		final int capacity = particles.capacity;
+		for (int w=0; w<accumulatedDeltaX.length; w++){
+			// The accumulators are cleared after every step
+			accumulatedDeltaX[w] = new float[capacity];
+			accumulatedDeltaY[w] = new float[capacity];
+		}
+		fusedNeighborWorker = new int[capacity];
+		fusedNeighborStart = new int[capacity];
+		
+		// The store does not keep the neighbor lists
+		verletX = new float[capacity];
+		verletY = new float[capacity];
+		spawned = new boolean[capacity];
+		spawnedParticles.clear();
+		rebuildNeighbors = true;
+		
+		int[] slots = new int[capacity];
+		System.arraycopy(activeSlot, 0, slots, 0, Math.min(capacity, activeSlot.length));
+		activeSlot = slots;
+	}
+	
+	public int getActiveParticleCount(){ return activeParticleCount; }
+	
+	/** 
+	 * Limits how many particles {@link #createParticle(int, Vector2)} and the emitters keep alive, the initial capacity by default.
+	 * When there are more particles the surplus is removed over the next 60 steps, the liquid would visibly drop otherwise.
+	 */
+	public void setParticleBudget(int budget){
+		particleBudget = Math.max(0, budget);
+		shedPerStep = Math.max(1, (activeParticleCount - particleBudget + SHED_STEPS-1) / SHED_STEPS);
+	}
+	
+	public int getParticleBudget(){ return particleBudget; }
+	
+	/** Sets how many neighbors a particle interacts with at most, up to {@link ParticleStore#maxNeighbors}. */
+	public void setNeighborLimit(int limit){
+		limit = Math.max(1, Math.min(limit, particles.maxNeighbors));
+		if (limit != neighborLimit) rebuildNeighbors = true;
+		neighborLimit = limit;
+	}
+	
+	public int getNeighborLimit(){ return neighborLimit; }
+	
+	/** Scales the rate of all emitters, 1 by default. */
+	public void setSpawnRateScale(float scale){
+		spawnRateScale = Math.max(0f, scale);
+	}
+	
+	public float getSpawnRateScale(){ return spawnRateScale; }
+	
+	/**
+	 * @return whether a magnet could be placed at the position of the given one, 
+	 * inside the simulated area and not overlapping any other magnet
+	 */
+	public boolean canPlaceMagnet(Magnet magnet){
+		Vector2 position = magnet.body.getPosition();
+		float x = position.x;
+		float y = position.y;
+		float half = Magnet.SIZE/2;
+		if (x + half < simulationAABB.lowerBound.x || y + half < simulationAABB.lowerBound.y
+				|| x - half > simulationAABB.upperBound.x || y - half > simulationAABB.upperBound.y) return false;
+		
+		if (magnetField.overlaps(x, y, magnet)) return false;
+		
+		// The magnets added since the last step are not in the field yet
+		for (int i=magnetField.getCount(); i<magnets.size; i++){
+			Magnet other = magnets.get(i);
+			if (other == magnet) continue;
+			Vector2 otherPosition = other.body.getPosition();
+			if (Math.abs(otherPosition.x - x) <= Magnet.SIZE && Math.abs(otherPosition.y - y) <= Magnet.SIZE) return false;
+		}
+		return true;
+	}
+	
+	/** 
+	 * Spawns the particles of all emitters, advances the simulation by one time step
+	 * and writes the positions before and after it into the back snapshot.
+	 */
+	public void step(){
+		Metrics.count(Metrics.STEPS, 1);
+		cullParticles();
+		if (compactionInterval > 0 && ++stepsSinceCompaction >= compactionInterval){
+			stepsSinceCompaction = 0;
+			compactParticles();
 		}
+		trimParticles();
+		for (int i=0; i<emitters.size; i++) emitters.get(i).emit(this);
 		
-		createParticle(1, new Vector2(-850, 400).div(GameScreen.SCALE));
+		backSnapshot.capturePrevious(this);
 		
 		try{
 			processParticles();
 		}catch(Exception e){
 			e.printStackTrace();
 		}
+		
+		backSnapshot.capture(this);
+	}
+	
+	public float getTimeStep(){ return timeStep; }
+	
+	/** 
+	 * Sets the duration of a step, {@link GameScreen#DT} by default. Smaller steps are more stable.
+	 * The velocities of the particles are converted to the new step.
+	 */
+	public void setTimeStep(float timeStep){
+		if (timeStep <= 0f) throw new IllegalArgumentException("time step must be positive: "+timeStep);
+		
+		final ParticleStore ps = particles;
+		float ratio = timeStep / this.timeStep;
+		for (int i=0; i<activeParticleCount; i++){
+			int index = activeParticles.get(i);
+			ps.velocityX[index] *= ratio;
+			ps.velocityY[index] *= ratio;
+		}
+		
+		float scale = timeStep / GameScreen.DT;
+		this.timeStep = timeStep;
+		accelerationScale = scale*scale;
+		gravity.set(GRAVITY).scl(accelerationScale);
+	}
+	
+	/** @return the positions of the last step that was published with {@link #swapSnapshots()} */
+	public ParticleSnapshot getSnapshot(){ return frontSnapshot; }
+	
+	/** Publishes the last step to the renderers. Must not be called while a step is running. */
+	public void swapSnapshots(){
+		ParticleSnapshot snapshot = frontSnapshot;
+		frontSnapshot = backSnapshot;
+		backSnapshot = snapshot;
+		
+		frontSnapshot.publish(snapshot.publication + 1, compactions, remapped ? remap : null);
+		remapped = false;
+	}
+	
+	// Sort the particles into the grid cells of their current positions
+	private void updateGrid(){
+		final ParticleStore ps = particles;
+		grid.begin();
+		for (int i=0; i<activeParticleCount; i++){
+			int index = activeParticles.get(i);
+			int x = ps.cellX[index] = getGridX(ps.positionX[index]);
+			int y = ps.cellY[index] = getGridY(ps.positionY[index]);
+			grid.add(x, y, index);
+		}
+		grid.end();
+	}
+	
+	/**
+	 * Enables the fused kernel, which finds neighbors and accumulates densities in a single pass 
+	 * and keeps only the neighbors within the ideal radius. This saves a pass over all neighbors 
+	 * and one barrier per step.
+	 */
+	public void setFusedKernel(boolean fusedKernel){
+		// The fused kernel overwrites the neighbor counts
+		if (fusedKernel != this.fusedKernel) rebuildNeighbors = true;
+		this.fusedKernel = fusedKernel;
+	}
+	
+	public boolean isFusedKernel(){ return fusedKernel; }
+	
+	/**
+	 * Enables Verlet neighbor lists for skins larger than 0. The lists hold all particles within 
+	 * the ideal radius plus the skin and are kept across steps until a particle moved more than 
+	 * half the skin, particles spawned meanwhile are added to the lists around them. Larger skins
+	 * rebuild less often but make the lists longer, 0.2 works well. This pays off in calm liquid or
+	 * with short time steps; in a deep or splashing pool some particle moves that far in almost 
+	 * every step and the longer lists make the steps slower, see {@link Metrics#NEIGHBOR_REBUILDS}.
+	 * Has no effect with the fused kernel, which searches the neighbors while accumulating densities.
+	 */
+	public void setVerletSkin(float skin){
+		skin = Math.max(0f, skin);
+		if (skin != verletSkin) rebuildNeighbors = true;
+		verletSkin = skin;
+		
+		int reach = (int)Math.ceil((RADIUS + skin) / CELL_SIZE);
+		for (int w=0; w<nearbyCells.length; w++) nearbyCells[w] = new int[(2*reach + 1)*(2*reach + 1)];
+	}
+	
+	public float getVerletSkin(){ return verletSkin; }
+	
+	/**
+	 * Bakes the field of all magnets but the first one, which follows the cursor, into tiles the
+	 * particles sample instead of evaluating every magnet. Must not be called while a step is running.
+	 */
+	public void setBakedMagnets(boolean baked){
+		magnetField.setBaked(baked);
+	}
+	
+	public boolean isBakedMagnets(){ return magnetField.isBaked(); }
+	
+	/** Sets how many particles a worker processes at once in each stage, for everything else on the scheduler as well. */
+	public void setChunkSize(int chunkSize){
+		scheduler.setChunkSize(chunkSize);
+	}
+	
+	/** @return the scheduler the stages run on, others may share its workers */
+	public ChunkedScheduler getScheduler(){ return scheduler; }
+	
+	/** Shuts the scheduler down if it is not shared. Must not be called while a step is running. */
+	@Override
+	public void dispose(){
+		if (ownsScheduler) scheduler.dispose();
 	}
 	
 	//Multithreading
-	private void processParticles()
+	void processParticles()
 	        throws InterruptedException, ExecutionException {
+		
+		beginStep();
+		
+		long time = Metrics.start();
+		searchNeighbors();
+		time = Metrics.lap(Metrics.NEIGHBORS, time);
+		
+		calculatePressures();
+		time = Metrics.lap(Metrics.PRESSURE, time);
+		
+		applyForces();
+		time = Metrics.lap(Metrics.FORCES, time);
+		
+		resolveCollisions();
+		time = Metrics.lap(Metrics.COLLISIONS, time);
+		
+		moveParticles();
+		Metrics.lap(Metrics.MOVE, time);
+		
+		if (Metrics.isEnabled()) countNeighbors();
+	}
+	
+	private void countNeighbors(){
+		final ParticleStore ps = particles;
+		long neighbors = 0;
+		for (int i=0; i<activeParticleCount; i++) neighbors += ps.neighborCount[activeParticles.get(i)];
+		Metrics.set(Metrics.PARTICLES, activeParticleCount);
+		Metrics.set(Metrics.NEIGHBORS_PER_PARTICLE, activeParticleCount == 0 ? 0 : (double)neighbors / activeParticleCount);
+	}
+	
+	// The stages of a step, visible to the benchmarks
+	
+	void beginStep(){
+		long time = Metrics.start();
+		magnetField.capture(magnets);
+		updateGrid();
+		time = Metrics.lap(Metrics.GRID, time);
+		
+		prepareCollisions();
+		Metrics.lap(Metrics.PREPARE_COLLISIONS, time);
+	}
+	
+	// Makes the next step rebuild the Verlet lists, so a benchmark can measure the rebuild on its own
+	void invalidateNeighborLists(){
+		rebuildNeighbors = true;
+	}
+	
+	void searchNeighbors() throws InterruptedException, ExecutionException {
+		if (fusedKernel){
+			for (int w=0; w<fusedNeighborSize.length; w++) fusedNeighborSize[w] = 0;
+			
+			scheduler.run(fusedPressureStage, activeParticleCount);
+		}else if (verletSkin > 0f){
+			checkNeighborLists();
+			if (rebuildNeighbors) scheduler.run(verletStage, grid.getCellCount());
+			scheduler.run(prepareStage, activeParticleCount);
+			addSpawnedParticles();
+		}else{
+			scheduler.run(prepareStage, activeParticleCount);
+		}
+	}
+	
+	// Rebuild all Verlet lists once a particle moved more than half the skin since its list was built,
+	// a pair missing from the lists can't have come within the ideal radius before that
+	private void checkNeighborLists(){
+		final ParticleStore ps = particles;
+		final float limitSq = verletSkin*verletSkin/4f;
+		for (int i=0; i<activeParticleCount && !rebuildNeighbors; i++){
+			int index = activeParticles.get(i);
+			if (spawned[index]) continue;
+			float dx = ps.positionX[index] - verletX[index];
+			float dy = ps.positionY[index] - verletY[index];
+			if (dx*dx + dy*dy > limitSq) rebuildNeighbors = true;
+		}
+		purgeNeighbors = particlesRemoved && !rebuildNeighbors;
+		if (rebuildNeighbors) Metrics.count(Metrics.NEIGHBOR_REBUILDS, 1);
+	}
+	
+	// Add the spawned particles to the lists of their neighbors. Their own lists reach half a skin further, 
+	// as the neighbors may already have moved half a skin since their lists were built.
+	private void addSpawnedParticles(){
+		final ParticleStore ps = particles;
+		final int maxNeighbors = ps.maxNeighbors;
+		final int limit = neighborLimit;
+		if (!rebuildNeighbors){
+			for (int s=0; s<spawnedParticles.size; s++){
+				int index = spawnedParticles.get(s);
+				if (!ps.alive[index]) continue;
+				
+				for (int a=index*maxNeighbors, end=a+ps.neighborCount[index]; a<end; a++){
+					int neighbor = ps.neighbors[a];
+					// Spawned neighbors found this one themselves
+					if (spawned[neighbor]) continue;
+					int count = ps.neighborCount[neighbor];
+					if (count >= limit) continue;
+					ps.neighbors[neighbor*maxNeighbors + count] = index;
+					ps.neighborCount[neighbor] = count + 1;
+				}
+			}
+		}
+		for (int s=0; s<spawnedParticles.size; s++) spawned[spawnedParticles.get(s)] = false;
+		spawnedParticles.clear();
+		rebuildNeighbors = false;
+		particlesRemoved = false;
+		purgeNeighbors = false;
+	}
+	
+	// The fused kernel accumulates the pressures while searching neighbors
+	void calculatePressures() throws InterruptedException, ExecutionException {
+		if (!fusedKernel) scheduler.run(pressureStage, activeParticleCount);
+	}
+	
+	void applyForces() throws InterruptedException, ExecutionException {
+		scheduler.run(fusedKernel ? fusedForcesStage : forcesStage, activeParticleCount);
 	    
-	    service.invokeAll(prepareTasks.subList(0, activeParticleCount));
-	    
-	    prepareCollisions();
-	    
-	    service.invokeAll(pressureTasks.subList(0, activeParticleCount));
-	    
-	    service.invokeAll(forcesTasks.subList(0, activeParticleCount));
-	    
-	    service.invokeAll(collisionTasks.subList(0, activeParticleCount));
+	    countFixtureOverflows();
 	    
-	    for (int i=0; i<activeParticleCount; i++) {
-	    	moveParticle(activeParticles.get(i));
-	    }
+	    scheduler.run(reduceStage, activeParticleCount);
+	}
+	
+	void resolveCollisions() throws InterruptedException, ExecutionException {
+		scheduler.run(collisionStage, activeParticleCount);
+	}
+	
+	void moveParticles() throws InterruptedException, ExecutionException {
+		scheduler.run(moveStage, activeParticleCount);
 	}
 	
 	private void setupThreadedLoops(){
-		for (int i=0; i<MAX_PARTICLES; i++) {
-	    	final int index=i;
-	    	Callable<Integer> callable = new Callable<Integer>() {
-	        	public Integer call(){
-	        		int num=activeParticles.get(index);
-	        		prepareSimulation(num);
-	        		return num;
-	        	}
-	        };
-	        prepareTasks.add(callable);
-	    }
+		prepareStage = new ChunkedScheduler.RangeTask() {
+			public void run(int start, int end, int worker){
+				for (int i=start; i<end; i++) prepareSimulation(activeParticles.get(i), worker);
+			}
+		};
 		
-		for (int i=0; i<MAX_PARTICLES; i++) {
-			final int index=i;
-	    	Callable<Integer> callable = new Callable<Integer>() {
-	        	public Integer call(){
-	        		int num=activeParticles.get(index);
-	        		calculatePressure(num);
-	        		return num;
-	        	}
-	        };
-	        pressureTasks.add(callable);
-	    }
+		verletStage = new ChunkedScheduler.RangeTask() {
+			public void run(int start, int end, int worker){
+				final float radius = RADIUS + verletSkin;
+				for (int cell=start; cell<end; cell++) findCellNeighbors(cell, radius, worker);
+			}
+		};
 		
-		for (int i=0; i<MAX_PARTICLES; i++) {
-			final int index=i;
-	    	Callable<Integer> callable = new Callable<Integer>() {
-	        	public Integer call(){
-	        		int num=activeParticles.get(index);
-	        		calculateForces(num);
-	        		
-	        		synchronized(LOCK) {
-	        			for (int j : accumulatedDeltas.get(num).keys().toArray().items)
-	                    {
-	                        delta.get(j).add(accumulatedDeltas.get(num).get(j).scl(1/MULTIPLIER));
-	                    }
-	        		}
-	        		return num;
-	        	}
-	        };
-	        forcesTasks.add(callable);
-	    }
+		pressureStage = new ChunkedScheduler.RangeTask() {
+			public void run(int start, int end, int worker){
+				for (int i=start; i<end; i++) calculatePressure(activeParticles.get(i));
+			}
+		};
 		
-		for (int i=0; i<MAX_PARTICLES; i++) {
-			final int index=i;
-	    	Callable<Integer> callable = new Callable<Integer>() {
-	        	public Integer call(){
-	        		int num=activeParticles.get(index);
-	        		resolveCollision(num);
-	        		return num;
-	        	}
-	        };
-	        collisionTasks.add(callable);
-	    }
+		// Every worker scatters the momentum exchange into its own accumulator, 
+		// so no locking is needed.
+		forcesStage = new ChunkedScheduler.RangeTask() {
+			public void run(int start, int end, int worker){
+				final float[] accumulatedX = accumulatedDeltaX[worker];
+				final float[] accumulatedY = accumulatedDeltaY[worker];
+				for (int i=start; i<end; i++)
+					calculateForces(activeParticles.get(i), accumulatedX, accumulatedY);
+			}
+		};
+		
+		fusedPressureStage = new ChunkedScheduler.RangeTask() {
+			public void run(int start, int end, int worker){
+				for (int i=start; i<end; i++) prepareAndCalculatePressure(activeParticles.get(i), worker);
+			}
+		};
+		
+		fusedForcesStage = new ChunkedScheduler.RangeTask() {
+			public void run(int start, int end, int worker){
+				final float[] accumulatedX = accumulatedDeltaX[worker];
+				final float[] accumulatedY = accumulatedDeltaY[worker];
+				for (int i=start; i<end; i++){
+					int num = activeParticles.get(i);
+					int buffer = fusedNeighborWorker[num];
+					calculateForces(num, fusedNeighbors[buffer], fusedDistances[buffer], fusedNeighborStart[num], 
+							particles.neighborCount[num], accumulatedX, accumulatedY);
+				}
+			}
+		};
+		
+		// Sum up the accumulators and clear them for the next step
+		reduceStage = new ChunkedScheduler.RangeTask() {
+			public void run(int start, int end, int worker){
+				final ParticleStore ps = particles;
+				final int workers = accumulatedDeltaX.length;
+				for (int i=start; i<end; i++){
+					int num = activeParticles.get(i);
+					float x = 0f, y = 0f;
+					for (int w=0; w<workers; w++){
+						x += accumulatedDeltaX[w][num];
+						y += accumulatedDeltaY[w][num];
+						accumulatedDeltaX[w][num] = 0f;
+						accumulatedDeltaY[w][num] = 0f;
+					}
+					ps.deltaX[num] = x / MULTIPLIER;
+					ps.deltaY[num] = y / MULTIPLIER;
+				}
+			}
+		};
+		
+		collisionStage = new ChunkedScheduler.RangeTask() {
+			public void run(int start, int end, int worker){
+				for (int i=start; i<end; i++) resolveCollision(activeParticles.get(i));
+			}
+		};
+		
+		moveStage = new ChunkedScheduler.RangeTask() {
+			public void run(int start, int end, int worker){
+				for (int i=start; i<end; i++) moveParticle(activeParticles.get(i));
+			}
+		};
 	}
 
 }
@@ -0,0 +1,266 @@
+package com.eg.element;
+
+import com.badlogic.gdx.Application.ApplicationType;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.GL10;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.graphics.Texture.TextureFilter;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes.Usage;
+import com.badlogic.gdx.graphics.glutils.FrameBuffer;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Disposable;
+
+/**
+ * Draws the particles of a {@link Liquid}. Keeps all the GL resources,
+ * so the simulation itself runs without a display.
+ * <p>
+ * The positions of the liquid's front {@link ParticleSnapshot} are copied into one vertex 
+ * buffer every frame and drawn with a single call, however many particles there are. In the
+ * {@link Mode#PARTICLES} mode they are drawn as points, with a shader when GLES 2.0 
+ * is available and the fixed function pipeline otherwise.
+ * <p>
+ * The {@link Mode#SPLATTING} mode needs GLES 2.0 and draws the same field as the 
+ * {@link MetaballSystem} on the GPU: every particle adds its kernel to an offscreen 
+ * buffer, which a fullscreen pass then cuts at the threshold.
+ */
+public class LiquidRenderer implements Disposable {
+
+	public enum Mode { PARTICLES, SPLATTING }
+
+	//world space diameter of a particle
+	public static final float PARTICLE_SIZE = 0.1f;
+
+	//field radius and threshold of the metaballs
+	private static final float SPLAT_RADIUS = 1f;
+	private static final float THRESHOLD = 0.99f;
+	//the field is scaled down to fit into the 8 bit buffer, sums beyond 1/SPLAT_SCALE saturate
+	private static final float SPLAT_SCALE = 0.25f;
+	//the offscreen buffer has 1/DOWNSAMPLE of the screen's resolution
+	private static final int DOWNSAMPLE = 2;
+
+	//desktop GL needs these to take the point size from the shader and to fill in gl_PointCoord
+	private static final int GL_VERTEX_PROGRAM_POINT_SIZE = 0x8642;
+	private static final int GL_POINT_SPRITE = 0x8861;
+
+	private static final String VERTEX_SHADER =
+			"attribute vec4 a_position;\n"
+			+ "uniform mat4 u_projView;\n"
+			+ "uniform float u_size;\n"
+			+ "void main(){\n"
+			+ "	gl_Position = u_projView * a_position;\n"
+			+ "	gl_PointSize = max(1.0, u_size / gl_Position.w);\n"
+			+ "}\n";
+
+	private static final String FRAGMENT_SHADER =
+			"#ifdef GL_ES\n"
+			+ "precision mediump float;\n"
+			+ "#endif\n"
+			+ "uniform vec4 u_color;\n"
+			+ "void main(){\n"
+			+ "	vec2 d = gl_PointCoord - vec2(0.5);\n"
+			+ "	if (dot(d, d) > 0.25) discard;\n"
+			+ "	gl_FragColor = u_color;\n"
+			+ "}\n";
+
+	private static final String SPLAT_FRAGMENT_SHADER =
+			"#ifdef GL_ES\n"
+			+ "precision mediump float;\n"
+			+ "#endif\n"
+			+ "uniform float u_scale;\n"
+			+ "void main(){\n"
+			+ "	float r = 1.0 - 2.0 * length(gl_PointCoord - vec2(0.5));\n"
+			+ "	if (r <= 0.0) discard;\n"
+			+ "	gl_FragColor = vec4(u_scale * r*r*r*(r*(r*6.0 - 15.0) + 10.0));\n"
+			+ "}\n";
+
+	private static final String THRESHOLD_VERTEX_SHADER =
+			"attribute vec4 a_position;\n"
+			+ "attribute vec2 a_texCoord0;\n"
+			+ "varying vec2 v_texCoords;\n"
+			+ "void main(){\n"
+			+ "	v_texCoords = a_texCoord0;\n"
+			+ "	gl_Position = a_position;\n"
+			+ "}\n";
+
+	private static final String THRESHOLD_FRAGMENT_SHADER =
+			"#ifdef GL_ES\n"
+			+ "precision mediump float;\n"
+			+ "#endif\n"
+			+ "varying vec2 v_texCoords;\n"
+			+ "uniform sampler2D u_texture;\n"
+			+ "uniform float u_threshold;\n"
+			+ "uniform vec4 u_color;\n"
+			+ "void main(){\n"
+			+ "	float f = texture2D(u_texture, v_texCoords).r;\n"
+			+ "	float alpha = smoothstep(u_threshold - 0.01, u_threshold + 0.01, f);\n"
+			+ "	if (alpha <= 0.0) discard;\n"
+			+ "	gl_FragColor = vec4(u_color.rgb, u_color.a * alpha);\n"
+			+ "}\n";
+
+	private final Liquid liquid;
+	private Mesh mesh;
+	private float[] vertices;
+	private ShaderProgram shader;
+	private Mode mode = Mode.PARTICLES;
+
+	//Splatting
+	private ShaderProgram splatShader, thresholdShader;
+	private FrameBuffer splatBuffer;
+	private Mesh screenQuad;
+
+	public LiquidRenderer(Liquid liquid){
+		this.liquid = liquid;
+
+		createMesh(liquid.particles.capacity);
+
+		if (Gdx.graphics.isGL20Available()){
+			shader = new ShaderProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+			if (!shader.isCompiled()) Gdx.app.error("LiquidRenderer", "Particle shader: "+shader.getLog());
+		}
+	}
+
+	public Mode getMode(){ return mode; }
+
+	/** Splatting falls back to particles without GLES 2.0. */
+	public void setMode(Mode mode){
+		if (mode == Mode.SPLATTING && !Gdx.graphics.isGL20Available()){
+			Gdx.app.log("LiquidRenderer", "Splatting needs GLES 2.0, drawing particles");
+			mode = Mode.PARTICLES;
+		}
+		this.mode = mode;
+	}
+
+	private void createSplatting(){
+		splatShader = new ShaderProgram(VERTEX_SHADER, SPLAT_FRAGMENT_SHADER);
+		if (!splatShader.isCompiled()) Gdx.app.error("LiquidRenderer", "Splat shader: "+splatShader.getLog());
+		thresholdShader = new ShaderProgram(THRESHOLD_VERTEX_SHADER, THRESHOLD_FRAGMENT_SHADER);
+		if (!thresholdShader.isCompiled()) Gdx.app.error("LiquidRenderer", "Threshold shader: "+thresholdShader.getLog());
+
+		screenQuad = new Mesh(true, 4, 0, new VertexAttribute(Usage.Position, 2, ShaderProgram.POSITION_ATTRIBUTE),
+				new VertexAttribute(Usage.TextureCoordinates, 2, ShaderProgram.TEXCOORD_ATTRIBUTE+"0"));
+		screenQuad.setVertices(new float[] {
+				-1, -1, 0, 0,
+				1, -1, 1, 0,
+				1, 1, 1, 1,
+				-1, 1, 0, 1});
+	}
+
+	// The buffer follows the size of the screen
+	private void updateSplatBuffer(){
+		int width = Math.max(1, Gdx.graphics.getWidth() / DOWNSAMPLE);
+		int height = Math.max(1, Gdx.graphics.getHeight() / DOWNSAMPLE);
+		if (splatBuffer != null && splatBuffer.getWidth() == width && splatBuffer.getHeight() == height) return;
+
+		if (splatBuffer != null) splatBuffer.dispose();
+		splatBuffer = new FrameBuffer(Format.RGBA8888, width, height, false);
+		splatBuffer.getColorBufferTexture().setFilter(TextureFilter.Linear, TextureFilter.Linear);
+	}
+
+	private void createMesh(int capacity){
+		Metrics.countAllocation();
+		if (mesh != null) mesh.dispose();
+		mesh = new Mesh(false, capacity, 0, new VertexAttribute(Usage.Position, 2, ShaderProgram.POSITION_ATTRIBUTE));
+		vertices = new float[capacity*2];
+	}
+
+	/** 
+	 * Draws the particles of the liquid's front snapshot with the camera's projection, outside of any batch.
+	 * @param alpha how far into the snapshot's step the particles are drawn, from 0 to 1
+	 */
+	public void draw(Camera cam, float alpha)
+	{
+		final ParticleSnapshot snapshot = liquid.getSnapshot();
+		final int count = snapshot.count;
+		if (count == 0) return;
+		if (count > mesh.getMaxVertices()) createMesh(snapshot.indices.length);
+
+		if (alpha >= 1f){
+			mesh.setVertices(snapshot.positions, 0, count*2);
+		}else{
+			snapshot.interpolate(alpha, vertices);
+			mesh.setVertices(vertices, 0, count*2);
+		}
+
+		// Pixels per world unit at distance 1, the projection's focal length times half the viewport
+		float scale = cam.projection.val[Matrix4.M11] * cam.viewportHeight / 2f;
+		float size = PARTICLE_SIZE * scale;
+
+		if (mode == Mode.SPLATTING){
+			splat(cam, count, scale);
+		}else if (shader != null){
+			if (Gdx.app.getType() == ApplicationType.Desktop){
+				Gdx.gl.glEnable(GL_VERTEX_PROGRAM_POINT_SIZE);
+				Gdx.gl.glEnable(GL_POINT_SPRITE);
+			}
+
+			shader.begin();
+			shader.setUniformMatrix("u_projView", cam.combined);
+			shader.setUniformf("u_size", size);
+			shader.setUniformf("u_color", 0f, 0f, 1f, 1f);
+			mesh.render(shader, GL20.GL_POINTS, 0, count);
+			shader.end();
+		}else{
+			// All particles lie in the z = 0 plane
+			GL10 gl = Gdx.gl10;
+			cam.apply(gl);
+			gl.glPointSize(Math.max(1f, size / Math.abs(cam.position.z)));
+			gl.glColor4f(0f, 0f, 1f, 1f);
+			mesh.render(GL10.GL_POINTS, 0, count);
+			gl.glColor4f(1f, 1f, 1f, 1f);
+		}
+	}
+
+	private void splat(Camera cam, int count, float scale){
+		if (splatShader == null) createSplatting();
+		updateSplatBuffer();
+
+		GL20 gl = Gdx.gl20;
+		if (Gdx.app.getType() == ApplicationType.Desktop){
+			gl.glEnable(GL_VERTEX_PROGRAM_POINT_SIZE);
+			gl.glEnable(GL_POINT_SPRITE);
+		}
+		gl.glDisable(GL20.GL_DEPTH_TEST);
+		gl.glEnable(GL20.GL_BLEND);
+
+		// Sum up the kernels, the buffer has fewer pixels per world unit than the screen
+		splatBuffer.begin();
+		gl.glClearColor(0f, 0f, 0f, 0f);
+		gl.glClear(GL20.GL_COLOR_BUFFER_BIT);
+		gl.glBlendFunc(GL20.GL_ONE, GL20.GL_ONE);
+		splatShader.begin();
+		splatShader.setUniformMatrix("u_projView", cam.combined);
+		splatShader.setUniformf("u_size", 2f * SPLAT_RADIUS * scale / DOWNSAMPLE);
+		splatShader.setUniformf("u_scale", SPLAT_SCALE);
+		mesh.render(splatShader, GL20.GL_POINTS, 0, count);
+		splatShader.end();
+		splatBuffer.end();
+
+		// Cut the field at the threshold over the whole screen
+		gl.glBlendFunc(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA);
+		splatBuffer.getColorBufferTexture().bind(0);
+		thresholdShader.begin();
+		thresholdShader.setUniformi("u_texture", 0);
+		thresholdShader.setUniformf("u_threshold", THRESHOLD * SPLAT_SCALE);
+		thresholdShader.setUniformf("u_color", 0f, 0.4f, 1f, 1f);
+		screenQuad.render(thresholdShader, GL20.GL_TRIANGLE_FAN);
+		thresholdShader.end();
+		gl.glDisable(GL20.GL_BLEND);
+	}
+
+	@Override
+	public void dispose() {
+		mesh.dispose();
+		if (shader != null) shader.dispose();
+		if (splatShader != null){
+			splatShader.dispose();
+			thresholdShader.dispose();
+			screenQuad.dispose();
+		}
+		if (splatBuffer != null) splatBuffer.dispose();
+	}
+}
@@ -0,0 +1,288 @@
+package com.eg.element;
+
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntIntMap;
+
+/**
+ * The magnets of a {@link Liquid}, captured once per step into flat arrays and bucketed on a
+ * grid with cells as large as the reach of a magnet.
+ * <p>
+ * Every magnet is added to the cells around its own, so the cell of a position lists all
+ * magnets that can reach it and a particle only evaluates those. Placement checks use the
+ * same cells.
+ * <p>
+ * Optionally the combined field of the stationary magnets, all but the first one which follows
+ * the cursor, is baked into tiles, one per cell they reach. Particles sample those bilinearly
+ * and only evaluate the first magnet. A tile is baked again when a magnet within reach of it
+ * is added, moved or removed.
+ */
+public class MagnetField {
+
+	/** Magnets act on particles closer than this. */
+	public static final float CUTOFF = 10f;
+	private static final float CUTOFF_SQ = CUTOFF*CUTOFF;
+
+	private static final float CHARGE = 6E-20f;
+
+	//samples along every edge of a tile, their distance is CUTOFF/(TILE_SAMPLES-1)
+	private static final int TILE_SAMPLES = 41;
+	private static final float SPACING = CUTOFF / (TILE_SAMPLES - 1);
+	//x and y force of every sample
+	private static final int TILE_FLOATS = TILE_SAMPLES*TILE_SAMPLES*2;
+
+	//x, y and charge of every magnet
+	private float[] data = new float[3*16];
+	private Magnet[] magnets = new Magnet[16];
+	private int count;
+	//all magnets, and the ones evaluated per particle
+	private final SpatialGrid grid = new SpatialGrid(64);
+	private final SpatialGrid dynamicGrid = new SpatialGrid(64);
+
+	//Baked field
+	private boolean baked;
+	//the magnets and where they were baked
+	private Magnet[] bakedMagnets = new Magnet[16];
+	private float[] bakedData = new float[3*16];
+	private int bakedCount;
+	//tile slots by cell key, unused slots are kept on a stack
+	private final IntIntMap tileSlots = new IntIntMap();
+	private float[] tiles = new float[0];
+	private int[] freeTiles = new int[0];
+	private int freeTileCount, tileCapacity;
+	//deduplicated tiles to bake in this step
+	private final SpatialGrid dirtyTiles = new SpatialGrid(64);
+
+	private static int getCell(float x){ return (int)Math.floor(x / CUTOFF); }
+
+	/**
+	 * Enables baking the stationary magnets, see above. The baked field is an approximation,
+	 * it is interpolated between samples CUTOFF/40 apart.
+	 */
+	public void setBaked(boolean baked){
+		if (baked == this.baked) return;
+		this.baked = baked;
+		tileSlots.clear();
+		freeTileCount = 0;
+		for (int slot=tileCapacity-1; slot>=0; slot--) freeTiles[freeTileCount++] = slot;
+		for (int m=0; m<bakedCount; m++) bakedMagnets[m] = null;
+		bakedCount = 0;
+	}
+
+	public boolean isBaked(){ return baked; }
+
+	/** Captures the positions of the magnets, the body positions are only read here. */
+	void capture(Array<Magnet> magnets){
+		int previous = count;
+		count = magnets.size;
+		if (this.magnets.length < count){
+			data = new float[count*6];
+			this.magnets = new Magnet[count*2];
+		}
+
+		grid.begin();
+		dynamicGrid.begin();
+		for (int m=0; m<count; m++){
+			Magnet magnet = magnets.get(m);
+			Vector2 position = magnet.body.getPosition();
+			data[m*3] = position.x;
+			data[m*3+1] = position.y;
+			data[m*3+2] = magnet.charge;
+			this.magnets[m] = magnet;
+
+			int x = getCell(position.x);
+			int y = getCell(position.y);
+			for (int i=-1; i<2; i++){
+				for (int j=-1; j<2; j++){
+					grid.add(x + i, y + j, m);
+					if (!baked || m == 0) dynamicGrid.add(x + i, y + j, m);
+				}
+			}
+		}
+		grid.end();
+		dynamicGrid.end();
+		//don't keep removed magnets alive
+		for (int m=count; m<previous; m++) this.magnets[m] = null;
+
+		if (baked) updateTiles();
+	}
+
+	/** @return the number of magnets at the last capture */
+	public int getCount(){ return count; }
+
+	/**
+	 * Adds the pull of the magnets within reach of a particle to its velocity.
+	 * @param scale converts the forces to the liquid's time step
+	 */
+	void apply(ParticleStore ps, int index, float scale){
+		final float px = ps.positionX[index];
+		final float py = ps.positionY[index];
+		final int cellX = getCell(px);
+		final int cellY = getCell(py);
+
+		if (baked){
+			int slot = tileSlots.get(SpatialGrid.key(cellX, cellY), -1);
+			if (slot >= 0) sampleTile(ps, index, slot, px - cellX*CUTOFF, py - cellY*CUTOFF, scale);
+		}
+
+		int cell = dynamicGrid.find(cellX, cellY);
+		if (cell < 0) return;
+
+		final float[] data = this.data;
+		for (int a=dynamicGrid.getCellStart(cell), end=dynamicGrid.getCellEnd(cell); a<end; a++){
+			int m = dynamicGrid.getItem(a);
+			float distanceX = data[m*3] - px;
+			float distanceY = data[m*3+1] - py;
+			float len2 = distanceX*distanceX + distanceY*distanceY;
+			if (len2<CUTOFF_SQ && len2>1){
+				float coulombForce = (float) (CHARGE*data[m*3+2]/(len2*4*Math.PI)) * scale;
+				float s = coulombForce / (float)Math.sqrt(len2);
+				ps.velocityX[index] += distanceX * s;
+				ps.velocityY[index] += distanceY * s;
+			}
+		}
+	}
+
+	// Bilinear interpolation between the four samples around a position relative to the tile
+	private void sampleTile(ParticleStore ps, int index, int slot, float x, float y, float scale){
+		float u = x / SPACING;
+		float v = y / SPACING;
+		int i = Math.min((int)u, TILE_SAMPLES - 2);
+		int j = Math.min((int)v, TILE_SAMPLES - 2);
+		float fu = u - i;
+		float fv = v - j;
+
+		final float[] tiles = this.tiles;
+		int s00 = slot*TILE_FLOATS + (j*TILE_SAMPLES + i)*2;
+		int s10 = s00 + 2;
+		int s01 = s00 + TILE_SAMPLES*2;
+		int s11 = s01 + 2;
+		float w00 = (1-fu)*(1-fv), w10 = fu*(1-fv), w01 = (1-fu)*fv, w11 = fu*fv;
+
+		ps.velocityX[index] += (tiles[s00]*w00 + tiles[s10]*w10 + tiles[s01]*w01 + tiles[s11]*w11) * scale;
+		ps.velocityY[index] += (tiles[s00+1]*w00 + tiles[s10+1]*w10 + tiles[s01+1]*w01 + tiles[s11+1]*w11) * scale;
+	}
+
+	// Find the stationary magnets that were added, moved or removed and bake the tiles around them
+	private void updateTiles(){
+		if (bakedMagnets.length < count){
+			Magnet[] magnets = new Magnet[count*2];
+			float[] data = new float[count*6];
+			System.arraycopy(bakedMagnets, 0, magnets, 0, bakedCount);
+			System.arraycopy(bakedData, 0, data, 0, bakedCount*3);
+			bakedMagnets = magnets;
+			bakedData = data;
+		}
+
+		dirtyTiles.begin();
+		// The first magnet is evaluated directly
+		for (int m=1; m<count; m++){
+			boolean known = m < bakedCount && bakedMagnets[m] == magnets[m];
+			if (known && bakedData[m*3] == data[m*3] && bakedData[m*3+1] == data[m*3+1] && bakedData[m*3+2] == data[m*3+2])
+				continue;
+
+			if (m < bakedCount && bakedMagnets[m] != null) markTiles(bakedData[m*3], bakedData[m*3+1]);
+			markTiles(data[m*3], data[m*3+1]);
+			bakedMagnets[m] = magnets[m];
+			System.arraycopy(data, m*3, bakedData, m*3, 3);
+		}
+		for (int m=Math.max(1, count); m<bakedCount; m++){
+			if (bakedMagnets[m] != null) markTiles(bakedData[m*3], bakedData[m*3+1]);
+			bakedMagnets[m] = null;
+		}
+		bakedCount = count;
+		dirtyTiles.end();
+
+		for (int t=0, n=dirtyTiles.getCellCount(); t<n; t++) bakeTile(dirtyTiles.getCellX(t), dirtyTiles.getCellY(t));
+	}
+
+	// Mark the tiles a magnet at the position reaches
+	private void markTiles(float x, float y){
+		int cellX = getCell(x);
+		int cellY = getCell(y);
+		for (int i=-1; i<2; i++)
+			for (int j=-1; j<2; j++)
+				if (dirtyTiles.find(cellX + i, cellY + j) < 0) dirtyTiles.add(cellX + i, cellY + j, 0);
+	}
+
+	// Sum up the stationary magnets at every sample of the tile, tiles no magnet reaches are removed
+	private void bakeTile(int tileX, int tileY){
+		int key = SpatialGrid.key(tileX, tileY);
+		int slot = tileSlots.get(key, -1);
+
+		int cell = grid.find(tileX, tileY);
+		int start = cell < 0 ? 0 : grid.getCellStart(cell);
+		int end = cell < 0 ? 0 : grid.getCellEnd(cell);
+		boolean reached = false;
+		for (int a=start; a<end; a++) if (grid.getItem(a) != 0) reached = true;
+
+		if (!reached){
+			if (slot >= 0){
+				tileSlots.remove(key, -1);
+				freeTiles[freeTileCount++] = slot;
+			}
+			return;
+		}
+		if (slot < 0){
+			if (freeTileCount == 0) growTiles();
+			slot = freeTiles[--freeTileCount];
+			tileSlots.put(key, slot);
+		}
+
+		final float[] tiles = this.tiles;
+		final float[] data = this.data;
+		final float originX = tileX*CUTOFF;
+		final float originY = tileY*CUTOFF;
+		int offset = slot*TILE_FLOATS;
+		for (int j=0; j<TILE_SAMPLES; j++){
+			float y = originY + j*SPACING;
+			for (int i=0; i<TILE_SAMPLES; i++){
+				float x = originX + i*SPACING;
+				float forceX = 0f, forceY = 0f;
+				for (int a=start; a<end; a++){
+					int m = grid.getItem(a);
+					if (m == 0) continue;
+
+					float distanceX = data[m*3] - x;
+					float distanceY = data[m*3+1] - y;
+					float len2 = distanceX*distanceX + distanceY*distanceY;
+					if (len2<CUTOFF_SQ && len2>1){
+						float coulombForce = (float) (CHARGE*data[m*3+2]/(len2*4*Math.PI));
+						float s = coulombForce / (float)Math.sqrt(len2);
+						forceX += distanceX * s;
+						forceY += distanceY * s;
+					}
+				}
+				tiles[offset++] = forceX;
+				tiles[offset++] = forceY;
+			}
+		}
+	}
+
+	private void growTiles(){
+		Metrics.countAllocation();
+		int capacity = Math.max(16, tileCapacity*2);
+		float[] tiles = new float[capacity*TILE_FLOATS];
+		System.arraycopy(this.tiles, 0, tiles, 0, this.tiles.length);
+		this.tiles = tiles;
+
+		int[] free = new int[capacity];
+		System.arraycopy(freeTiles, 0, free, 0, freeTileCount);
+		for (int slot=capacity-1; slot>=tileCapacity; slot--) free[freeTileCount++] = slot;
+		freeTiles = free;
+		tileCapacity = capacity;
+	}
+
+	/** @return whether a magnet at the position would overlap a captured one other than the given one */
+	public boolean overlaps(float x, float y, Magnet ignore){
+		int cell = grid.find(getCell(x), getCell(y));
+		if (cell < 0) return false;
+
+		for (int a=grid.getCellStart(cell), end=grid.getCellEnd(cell); a<end; a++){
+			int m = grid.getItem(a);
+			if (magnets[m] == ignore) continue;
+			if (Math.abs(data[m*3] - x) <= Magnet.SIZE && Math.abs(data[m*3+1] - y) <= Magnet.SIZE) return true;
+		}
+		return false;
+	}
+}
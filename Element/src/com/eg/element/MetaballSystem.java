@@ -1,227 +1,504 @@
 package com.eg.element;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Camera;
 import com.badlogic.gdx.graphics.GL10;
+import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.Mesh;
 import com.badlogic.gdx.graphics.VertexAttribute;
 import com.badlogic.gdx.graphics.VertexAttributes.Usage;
-import com.badlogic.gdx.graphics.g3d.ModelBatch;
-import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
 import com.badlogic.gdx.utils.Disposable;
-import com.badlogic.gdx.utils.FloatArray;
-import com.badlogic.gdx.utils.IntArray;
-import com.badlogic.gdx.utils.IntMap;
-import com.badlogic.gdx.utils.ShortArray;
+import com.badlogic.gdx.utils.IntFloatMap;
+import com.badlogic.gdx.utils.IntIntMap;
 
+/**
+ * Extracts the surface of the liquid with marching squares and draws it as lines.
+ * <p>
+ * Every particle contributes to a scalar field within a radius of 1. The squares are as large
+ * as the cells of the liquid's grid by default, see {@link #setSquareSize(float)}. The field is
+ * sampled at their corners by looking only at the particles in the squares within the radius.
+ * <p>
+ * The surface is updated incrementally. A particle is only resampled once it moved more than
+ * {@link #MOVE_TOLERANCE} since it was last sampled. Only the corners within its reach are
+ * recomputed and only the squares touching a changed corner are evaluated again, in parallel.
+ * The segments of all other squares are kept from the previous frames.
+ */
 public class MetaballSystem implements Disposable{
-	
+
 	private final static float THRESHOLD = 0.99f;
-	
+
+	//how far a particle moves before the surface around it is recomputed
+	public final static float MOVE_TOLERANCE = 0.02f;
+
+	//edges as pairs of corners, corners counter clockwise from the bottom left. Every edge
+	//points right or up, so neighboring cells interpolate their shared edge the same way
+	private final static int[] EDGES = {0, 1, 1, 2, 3, 2, 0, 3};
+	//crossed edges for every corner configuration, pairs form segments; the saddles 5 and 10 are resolved separately
+	private final static int[][] SEGMENTS = {
+		{}, {3, 0}, {0, 1}, {3, 1},
+		{1, 2}, null, {0, 2}, {3, 2},
+		{2, 3}, {0, 2}, null, {1, 2},
+		{1, 3}, {0, 1}, {3, 0}, {}
+	};
+	//floats of the at most two segments of a square
+	private final static int SEGMENT_STRIDE = 8;
+
+	private static final String VERTEX_SHADER =
+			"attribute vec4 a_position;\n"
+			+ "uniform mat4 u_projView;\n"
+			+ "void main(){\n"
+			+ "	gl_Position = u_projView * a_position;\n"
+			+ "}\n";
+
+	private static final String FRAGMENT_SHADER =
+			"#ifdef GL_ES\n"
+			+ "precision mediump float;\n"
+			+ "#endif\n"
+			+ "uniform vec4 u_color;\n"
+			+ "void main(){\n"
+			+ "	gl_FragColor = u_color;\n"
+			+ "}\n";
+
 	private final Liquid liquid;
-	
-	private Mesh mesh;	
-	private FloatArray vertices;
-	private ShortArray indices;
-	
-	private Array<FloatArray> tmp;
-	
-	private IntMap<IntArray> additionalCells;
-	
-	private final ExecutorService service;
-	private List<Callable<Integer>> cellTasks;
-	
+	//edge length of the squares
+	private float squareSize = Liquid.CELL_SIZE;
+
+	private Mesh mesh;
+	private float[] vertices;
+	private int vertexCount;
+	private ShaderProgram shader;
+
+	//positions the particles were last sampled at and the last update they were seen in
+	private boolean[] sampled;
+	private float[] sampledX, sampledY;
+	private int[] seen;
+	private int frame;
+	//the last snapshot seen and the compactions of the liquid up to it
+	private int publication, compactions;
+	//particles sorted into squares by their sampled positions
+	private final SpatialGrid particleGrid;
+
+	//field value of every corner that has one, keyed by SpatialGrid.key
+	private final IntFloatMap field = new IntFloatMap();
+
+	//deduplicated sets of the corners and squares to recompute in this frame
+	private final SpatialGrid dirtyCorners;
+	private final SpatialGrid dirtyCells;
+	private float[] dirtyValues;
+	private float[] dirtySegments;
+	private int[] dirtySegmentSizes;
+
+	//boundary squares, the ones crossed by the surface, and their segments
+	private final IntIntMap surfaceSlots = new IntIntMap();
+	private int surfaceCount;
+	private int[] surfaceKeys;
+	private float[] surfaceSegments;
+	private int[] surfaceSegmentSizes;
+
+	//Multithreading
+	private final ChunkedScheduler scheduler;
+	private final ChunkedScheduler.RangeTask cornerStage, cellStage;
+	//corner values and positions of the current square of every worker
+	private final float[][] cellValues, cellCorners;
+
 	public MetaballSystem(Liquid liquid){
-		
+
 		this.liquid = liquid;
-		
-		mesh = new Mesh(false, Liquid.MAX_PARTICLES*12, Liquid.MAX_PARTICLES*8, 
-                new VertexAttribute(Usage.Position, 3, "a_position"));
-		
-		vertices = new FloatArray(Liquid.MAX_PARTICLES*12);
-		indices = new ShortArray(Liquid.MAX_PARTICLES*4);
-		for (int i=0; i<Liquid.MAX_PARTICLES*4; i++) indices.add(i);
-		tmp = new Array<FloatArray>();
-		
-		additionalCells = new IntMap<IntArray>();
-        
-      //Multithreading
-      		int threads = Runtime.getRuntime().availableProcessors();
-      		
-      		System.out.println(threads+" threads available");
-      		
-      		service = Executors.newFixedThreadPool(threads);
-      		cellTasks = new ArrayList<Callable<Integer>>();
-	}
-	
-	public void draw(ModelBatch batch){
-		mesh.render(GL10.GL_POINTS);
-	}
-	
+
+		int capacity = liquid.particles.capacity;
+		sampled = new boolean[capacity];
+		sampledX = new float[capacity];
+		sampledY = new float[capacity];
+		seen = new int[capacity];
+		particleGrid = new SpatialGrid(capacity);
+
+		dirtyCorners = new SpatialGrid(capacity*4);
+		dirtyCells = new SpatialGrid(capacity*4);
+		dirtyValues = new float[capacity*4];
+		dirtySegments = new float[capacity*4*SEGMENT_STRIDE];
+		dirtySegmentSizes = new int[capacity*4];
+
+		surfaceKeys = new int[capacity];
+		surfaceSegments = new float[capacity*SEGMENT_STRIDE];
+		surfaceSegmentSizes = new int[capacity];
+
+		//Multithreading, on the liquid's workers. Only one of them runs a loop at a time,
+		//so updating the surface while a step is simulated does not oversubscribe the cores
+		scheduler = liquid.getScheduler();
+
+		cellValues = new float[scheduler.getWorkerCount()][4];
+		cellCorners = new float[scheduler.getWorkerCount()][8];
+
+		cornerStage = new ChunkedScheduler.RangeTask() {
+			public void run(int start, int end, int worker){
+				for (int corner=start; corner<end; corner++)
+					dirtyValues[corner] = calcValue(dirtyCorners.getCellX(corner)*squareSize,
+							dirtyCorners.getCellY(corner)*squareSize);
+			}
+		};
+
+		cellStage = new ChunkedScheduler.RangeTask() {
+			public void run(int start, int end, int worker){
+				for (int cell=start; cell<end; cell++)
+					evaluateCell(dirtyCells.getCellX(cell), dirtyCells.getCellY(cell), cell, worker);
+			}
+		};
+
+		createMesh(capacity*4);
+
+		if (Gdx.graphics.isGL20Available()){
+			shader = new ShaderProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+			if (!shader.isCompiled()) Gdx.app.error("MetaballSystem", "Surface shader: "+shader.getLog());
+		}
+	}
+
+	private void createMesh(int maxVertices){
+		Metrics.countAllocation();
+		if (mesh != null) mesh.dispose();
+		mesh = new Mesh(false, maxVertices, 0, new VertexAttribute(Usage.Position, 2, ShaderProgram.POSITION_ATTRIBUTE));
+		vertices = new float[maxVertices*2];
+	}
+
+	/** Draws the surface with the camera's projection, outside of any batch. */
+	public void draw(Camera cam){
+		if (vertexCount == 0) return;
+
+		if (shader != null){
+			shader.begin();
+			shader.setUniformMatrix("u_projView", cam.combined);
+			shader.setUniformf("u_color", 0f, 0.4f, 1f, 1f);
+			mesh.render(shader, GL20.GL_LINES, 0, vertexCount);
+			shader.end();
+		}else{
+			GL10 gl = Gdx.gl10;
+			cam.apply(gl);
+			gl.glColor4f(0f, 0.4f, 1f, 1f);
+			mesh.render(GL10.GL_LINES, 0, vertexCount);
+			gl.glColor4f(1f, 1f, 1f, 1f);
+		}
+	}
+
+	/** 
+	 * Sets the edge length of the squares, larger ones give a coarser but cheaper surface.
+	 * The whole surface is extracted again on the next update.
+	 */
+	public void setSquareSize(float size){
+		if (size <= 0f) throw new IllegalArgumentException("square size must be positive: "+size);
+		if (size == squareSize) return;
+
+		squareSize = size;
+		clear();
+	}
+
+	// Forget the surface and all samples, so everything is extracted again
+	private void clear(){
+		field.clear();
+		surfaceSlots.clear();
+		surfaceCount = 0;
+		vertexCount = 0;
+		for (int index=0; index<sampled.length; index++) sampled[index] = false;
+	}
+
+	public float getSquareSize(){ return squareSize; }
+
+	/** Updates the surface around the particles of the liquid's front snapshot that moved. Has to be called from the GL thread. */
 	public void update(){
-		
-		calcCells();
-		
-		updateCellTasks(); // performance killer
-		
+
+		findMovedParticles();
+		if (dirtyCorners.getCellCount() == 0) return;
+
 		try{
-			//service.invokeAll(cellTasks);
+			scheduler.run(cornerStage, dirtyCorners.getCellCount());
+			updateField();
+
+			scheduler.run(cellStage, dirtyCells.getCellCount());
+			updateSurface();
 		}catch (Exception e){
 			e.printStackTrace();
 		}
+
+		updateVertices();
+	}
+
+	// Resample the particles that moved, spawned or died, mark the corners they reach at both
+	// their old and new position and sort all particles into cells by their sampled positions
+	private void findMovedParticles(){
+		final ParticleSnapshot snapshot = liquid.getSnapshot();
+		frame++;
+		dirtyCorners.begin();
+		if (snapshot.publication != publication){
+			// Follow the particles the liquid renumbered, unless a snapshot with new numbers was missed
+			if (snapshot.compactions != compactions){
+				if (snapshot.remapped && snapshot.publication == publication + 1) remap(snapshot);
+				else clear();
+				compactions = snapshot.compactions;
+			}
+			publication = snapshot.publication;
+		}
+		if (snapshot.capacity != sampled.length) resize(snapshot.capacity);
+		particleGrid.begin();
+		for (int i=0; i<snapshot.count; i++){
+			int index = snapshot.indices[i];
+			float x = snapshot.positions[i*2];
+			float y = snapshot.positions[i*2+1];
+			seen[index] = frame;
+			if (!sampled[index] || Math.abs(x - sampledX[index]) > MOVE_TOLERANCE || Math.abs(y - sampledY[index]) > MOVE_TOLERANCE){
+				if (sampled[index]) markCorners(sampledX[index], sampledY[index]);
+				markCorners(x, y);
+				sampled[index] = true;
+				sampledX[index] = x;
+				sampledY[index] = y;
+			}
+			particleGrid.add(getGridX(sampledX[index]), getGridY(sampledY[index]), index);
+		}
+		particleGrid.end();
 		
-		//updateVertices();
-		
-		//ShortArray ind = new ShortArray(indices);
-		//ind.truncate(vertices.size/3);
-		//mesh.setIndices(ind.toArray());
-		//mesh.setVertices(vertices.toArray());
-	}
-	
-	private void calcCells() {
-		for (int x : liquid.grid.keys().toArray().items){
-			for (int y : liquid.grid.get(x).keys().toArray().items){
-				for (int x1=x-2; x1<x+3; x1++){
-					for (int y1=y-2; y1<y+3; y1++){
-						if(x1==x && y1==y) continue;
-						
-						if (!liquid.grid.containsKey(x1)){
-							if (!additionalCells.containsKey(x1))
-								additionalCells.put(x1, new IntArray(100));
-							additionalCells.get(x1).add(y1);
-							continue;
-						}
-						if (!liquid.grid.get(x1).containsKey(y1)){
-							if (!additionalCells.containsKey(x1))
-								additionalCells.put(x1, new IntArray(100));
-							additionalCells.get(x1).add(y1);;
-						}
-					}
-				}
+		for (int index=0; index<sampled.length; index++){
+			if (sampled[index] && seen[index] != frame){
+				markCorners(sampledX[index], sampledY[index]);
+				sampled[index] = false;
 			}
 		}
+		dirtyCorners.end();
+
+		if (dirtyValues.length < dirtyCorners.getCellCount()) dirtyValues = new float[dirtyCorners.getCellCount()*2];
 	}
 
-	private void updateVertices() {
-		vertices.clear();
-		for (FloatArray v : tmp){
-			if (v!=null)for (int i=0; i<v.size-1; i+=2){
-				vertices.add(v.get(i));
-				vertices.add(v.get(i+1));
-				vertices.add(0);
+	// Move the samples to the new indices of the particles, the ones of removed particles are gone
+	private void remap(ParticleSnapshot snapshot){
+		final int[] remap = snapshot.remap;
+		final int capacity = snapshot.capacity;
+		boolean[] sampled = new boolean[capacity];
+		float[] sampledX = new float[capacity];
+		float[] sampledY = new float[capacity];
+		int[] seen = new int[capacity];
+
+		for (int index=0; index<this.sampled.length; index++){
+			if (!this.sampled[index]) continue;
+
+			int to = index < remap.length ? remap[index] : -1;
+			if (to < 0 || to >= capacity){
+				markCorners(this.sampledX[index], this.sampledY[index]);
+				continue;
 			}
+			sampled[to] = true;
+			sampledX[to] = this.sampledX[index];
+			sampledY[to] = this.sampledY[index];
+			seen[to] = this.seen[index];
 		}
-		tmp.clear();
+		this.sampled = sampled;
+		this.sampledX = sampledX;
+		this.sampledY = sampledY;
+		this.seen = seen;
 	}
-	
-	private void evaluateCell(final int x, final int y){
-		final float x1 = x*Liquid.CELL_SIZE;
-		final float y1 = y*Liquid.CELL_SIZE;
-		
-		final float[] corners = new float[8];
-		corners[0] = x1; 						corners[1] = y1;		
-		corners[2] = x1 + Liquid.CELL_SIZE; 	corners[3] = y1;		
-		corners[4] = x1 + Liquid.CELL_SIZE; 	corners[5] = y1 + Liquid.CELL_SIZE;		
-		corners[6] = x1; 						corners[7] = y1 + Liquid.CELL_SIZE;
-		
-		boolean[] result = new boolean[8];
-		calcValues(corners, result);
-		
-		FloatArray verts = new FloatArray(8);
-		for (int i=0; i<4; i++){
-			
-			int c1=(i==3)? 0 : i+1;
-			if (result[i]!=result[c1]){
-				verts.add((corners[i*2]+corners[(c1)*2])/2);
-				verts.add((corners[i*2+1]+corners[(c1)*2+1])/2);
+
+	// Follow the capacity of the particle store, the particles beyond a smaller one are gone
+	private void resize(int capacity){
+		Metrics.countAllocation();
+		for (int index=capacity; index<sampled.length; index++)
+			if (sampled[index]) markCorners(sampledX[index], sampledY[index]);
+
+		int count = Math.min(capacity, sampled.length);
+		boolean[] sampled = new boolean[capacity];
+		float[] sampledX = new float[capacity];
+		float[] sampledY = new float[capacity];
+		int[] seen = new int[capacity];
+		System.arraycopy(this.sampled, 0, sampled, 0, count);
+		System.arraycopy(this.sampledX, 0, sampledX, 0, count);
+		System.arraycopy(this.sampledY, 0, sampledY, 0, count);
+		System.arraycopy(this.seen, 0, seen, 0, count);
+		this.sampled = sampled;
+		this.sampledX = sampledX;
+		this.sampledY = sampledY;
+		this.seen = seen;
+	}
+
+	// Mark the corners within the field radius of a position
+	private void markCorners(float x, float y){
+		for (int i=getGridX(x - 1f), maxX=getGridX(x + 1f); i<=maxX; i++)
+			for (int j=getGridY(y - 1f), maxY=getGridY(y + 1f); j<=maxY; j++)
+				if (dirtyCorners.find(i, j) < 0) dirtyCorners.add(i, j, 0);
+	}
+
+	// Store the new corner values and collect the squares that touch a changed corner
+	private void updateField(){
+		dirtyCells.begin();
+		for (int corner=0, n=dirtyCorners.getCellCount(); corner<n; corner++){
+			int x = dirtyCorners.getCellX(corner);
+			int y = dirtyCorners.getCellY(corner);
+			int key = SpatialGrid.key(x, y);
+			float value = dirtyValues[corner];
+			if (value == field.get(key, 0f)) continue;
+
+			if (value == 0f) field.remove(key, 0f);
+			else field.put(key, value);
+
+			for (int i=x-1; i<=x; i++)
+				for (int j=y-1; j<=y; j++)
+					if (dirtyCells.find(i, j) < 0) dirtyCells.add(i, j, 0);
+		}
+		dirtyCells.end();
+
+		int cells = dirtyCells.getCellCount();
+		if (dirtySegmentSizes.length < cells){
+			dirtySegments = new float[cells*2*SEGMENT_STRIDE];
+			dirtySegmentSizes = new int[cells*2];
+		}
+	}
+
+	// Replace the segments of the evaluated squares
+	private void updateSurface(){
+		for (int cell=0, n=dirtyCells.getCellCount(); cell<n; cell++){
+			int key = SpatialGrid.key(dirtyCells.getCellX(cell), dirtyCells.getCellY(cell));
+			int size = dirtySegmentSizes[cell];
+			int slot = surfaceSlots.get(key, -1);
+
+			if (size == 0){
+				if (slot >= 0) removeSurfaceCell(slot);
+				continue;
 			}
-			
-			int c2=(i==0)? 3 : i-1;
-			if (result[i]!=result[c2]){
-				verts.add((corners[i*2]+corners[(c2)*2])/2);
-				verts.add((corners[i*2+1]+corners[(c2)*2+1])/2);
+
+			if (slot < 0){
+				if (surfaceCount == surfaceKeys.length) growSurface();
+				slot = surfaceCount++;
+				surfaceKeys[slot] = key;
+				surfaceSlots.put(key, slot);
 			}
+			System.arraycopy(dirtySegments, cell*SEGMENT_STRIDE, surfaceSegments, slot*SEGMENT_STRIDE, size);
+			surfaceSegmentSizes[slot] = size;
 		}
-		
-		tmp.add(verts);
-	}
-	
-	private static boolean containsVector(FloatArray list3d, float x, float y){
-		for (int i=0; i<list3d.size-2; i+=3)
-			if (list3d.get(i)==x && list3d.get(i+1)==y) return true;		
-		return false;
-	}
-	
-//	private static boolean containsVector(Array<Vector2> list, Vector2 vec){
-//		for (Vector2 v : list)
-//			if (v.x==vec.x && v.y==vec.y) return true;
-//		return false;
-//	}
-	
-	private void calcValues(float[] pos, boolean[] out){
-		int n=0;
-		float r;
-		float f;
-		
-		main:for (int i=0; i<pos.length; i+=2){
-			f = 0;			
-			for (int index : liquid.activeParticles.toArray()){
-				r = 1-liquid.getPos(index).dst(pos[i], pos[i+1]);
-				if (r<=0) continue;
-				f += r*r*r*(r*(r*6 - 15) + 10);
-				if (f>THRESHOLD){
-					out[n]=true;
-					n++;
-					continue main;
+	}
+
+	private void removeSurfaceCell(int slot){
+		surfaceSlots.remove(surfaceKeys[slot], -1);
+		int last = --surfaceCount;
+		if (slot == last) return;
+
+		surfaceKeys[slot] = surfaceKeys[last];
+		surfaceSegmentSizes[slot] = surfaceSegmentSizes[last];
+		System.arraycopy(surfaceSegments, last*SEGMENT_STRIDE, surfaceSegments, slot*SEGMENT_STRIDE, SEGMENT_STRIDE);
+		surfaceSlots.put(surfaceKeys[slot], slot);
+	}
+
+	private void growSurface(){
+		Metrics.countAllocation();
+		int size = surfaceKeys.length*2;
+		int[] keys = new int[size];
+		float[] segments = new float[size*SEGMENT_STRIDE];
+		int[] sizes = new int[size];
+		System.arraycopy(surfaceKeys, 0, keys, 0, surfaceCount);
+		System.arraycopy(surfaceSegments, 0, segments, 0, surfaceCount*SEGMENT_STRIDE);
+		System.arraycopy(surfaceSegmentSizes, 0, sizes, 0, surfaceCount);
+		surfaceKeys = keys;
+		surfaceSegments = segments;
+		surfaceSegmentSizes = sizes;
+	}
+
+	private int getGridX(float x) { return (int)Math.floor(x / squareSize); }
+	private int getGridY(float y) { return (int)Math.floor(y / squareSize); }
+
+	// Copy the segments of all boundary squares into the mesh
+	private void updateVertices() {
+		int size = 0;
+		for (int slot=0; slot<surfaceCount; slot++) size += surfaceSegmentSizes[slot];
+		if (size > vertices.length) createMesh(size);
+
+		int offset = 0;
+		for (int slot=0; slot<surfaceCount; slot++){
+			System.arraycopy(surfaceSegments, slot*SEGMENT_STRIDE, vertices, offset, surfaceSegmentSizes[slot]);
+			offset += surfaceSegmentSizes[slot];
+		}
+		vertexCount = size/2;
+		mesh.setVertices(vertices, 0, size);
+	}
+
+	private void evaluateCell(final int x, final int y, final int cell, final int worker){
+		final float size = squareSize;
+		final float x1 = x*size;
+		final float y1 = y*size;
+		final float x2 = (x+1)*size;
+		final float y2 = (y+1)*size;
+		final float[] values = cellValues[worker];
+
+		values[0] = field.get(SpatialGrid.key(x, y), 0f);
+		values[1] = field.get(SpatialGrid.key(x+1, y), 0f);
+		values[2] = field.get(SpatialGrid.key(x+1, y+1), 0f);
+		values[3] = field.get(SpatialGrid.key(x, y+1), 0f);
+
+		int config = 0;
+		for (int i=0; i<4; i++) if (values[i] > THRESHOLD) config |= 1 << i;
+		dirtySegmentSizes[cell] = 0;
+		if (config == 0 || config == 15) return;
+
+		final float[] positions = cellCorners[worker];
+		positions[0] = x1; positions[1] = y1;
+		positions[2] = x2; positions[3] = y1;
+		positions[4] = x2; positions[5] = y2;
+		positions[6] = x1; positions[7] = y2;
+
+		if (config == 5 || config == 10){
+			// Saddle, the value at the center decides whether the inside corners are connected
+			boolean connected = (values[0] + values[1] + values[2] + values[3]) / 4f > THRESHOLD;
+			if (connected == (config == 5)){
+				addSegment(cell, positions, values, 0, 1);
+				addSegment(cell, positions, values, 2, 3);
+			}else{
+				addSegment(cell, positions, values, 3, 0);
+				addSegment(cell, positions, values, 1, 2);
+			}
+			return;
+		}
+
+		int[] edges = SEGMENTS[config];
+		addSegment(cell, positions, values, edges[0], edges[1]);
+	}
+
+	private void addSegment(int cell, float[] corners, float[] values, int edge1, int edge2){
+		addEdgePoint(cell, corners, values, edge1);
+		addEdgePoint(cell, corners, values, edge2);
+	}
+
+	// Interpolate the point on the edge where the field crosses the threshold
+	private void addEdgePoint(int cell, float[] corners, float[] values, int edge){
+		int a = EDGES[edge*2];
+		int b = EDGES[edge*2+1];
+		float t = (THRESHOLD - values[a]) / (values[b] - values[a]);
+		int offset = cell*SEGMENT_STRIDE + dirtySegmentSizes[cell];
+		dirtySegments[offset] = corners[a*2] + (corners[b*2] - corners[a*2]) * t;
+		dirtySegments[offset+1] = corners[a*2+1] + (corners[b*2+1] - corners[a*2+1]) * t;
+		dirtySegmentSizes[cell] += 2;
+	}
+
+	// Sum up the field of the particles in the cells within a radius of 1
+	private float calcValue(float x, float y){
+		final SpatialGrid grid = particleGrid;
+		float f = 0;
+
+		for (int i=getGridX(x - 1f), maxX=getGridX(x + 1f); i<=maxX; i++){
+			for (int j=getGridY(y - 1f), maxY=getGridY(y + 1f); j<=maxY; j++){
+				int cell = grid.find(i, j);
+				if (cell < 0) continue;
+
+				for (int a=grid.getCellStart(cell), end=grid.getCellEnd(cell); a<end; a++){
+					int index = grid.getItem(a);
+					float dx = sampledX[index] - x;
+					float dy = sampledY[index] - y;
+					float distanceSq = dx*dx + dy*dy;
+					if (distanceSq >= 1f) continue;
+
+					float r = 1 - (float)Math.sqrt(distanceSq);
+					f += r*r*r*(r*(r*6 - 15) + 10);
 				}
 			}
-			out[n]=false;
-			n++;
 		}
+		return f;
 	}
 
 	@Override
 	public void dispose() {
 		mesh.dispose();
-		
-	}
-	
-	private void updateCellTasks(){
-		cellTasks.clear();
-		
-		for (int x : liquid.grid.keys().toArray().toArray()){
-			for (int y : liquid.grid.get(x).keys().toArray().toArray()){
-				final int x1 = x;
-				final int y1 = y;
-				
-				Callable<Integer> callable = new Callable<Integer>() {
-			        public Integer call(){
-			        	evaluateCell(x1,y1);
-			        	return x1;
-			        }
-			    };
-			    cellTasks.add(callable);
-			}
-		}
-		
-		for (int x : additionalCells.keys().toArray().toArray()){
-			for (int y : additionalCells.get(x).toArray()){
-				final int x1 = x;
-				final int y1 = y;
-				
-				Callable<Integer> callable = new Callable<Integer>() {
-			        public Integer call(){
-			        	evaluateCell(x1,y1);
-			        	return x1;
-			        }
-			    };
-			    cellTasks.add(callable);
-			}
-		}
+		if (shader != null) shader.dispose();
 	}
 
 }
@@ -0,0 +1,172 @@
+package com.eg.element;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Per frame timings and counters of the simulation and the drawing.
+ * <p>
+ * Disabled by default, then every call site costs a single branch. Timers and counters add up
+ * within a frame, gauges keep their last value. {@link #endFrame()} closes a frame and keeps the
+ * last {@link #HISTORY} frames for the overlay and the CSV and JSON dumps. It has to be called
+ * while no step is running, as does {@link #setEnabled(boolean)}. Every metric but the allocations
+ * is only written by one thread.
+ */
+public class Metrics {
+
+	//Timers, in nanoseconds
+	public static final int GRID = 0;
+	public static final int PREPARE_COLLISIONS = 1;
+	public static final int NEIGHBORS = 2;
+	public static final int PRESSURE = 3;
+	public static final int FORCES = 4;
+	public static final int COLLISIONS = 5;
+	public static final int MOVE = 6;
+	public static final int WORLD_STEP = 7;
+	public static final int DRAW = 8;
+	public static final int SURFACE = 9;
+	//Counters
+	public static final int STEPS = 10;
+	public static final int FIXTURE_OVERFLOWS = 11;
+	//arrays and meshes allocated because a buffer was too small
+	public static final int ALLOCATIONS = 12;
+	//steps that rebuilt the Verlet neighbor lists
+	public static final int NEIGHBOR_REBUILDS = 13;
+	//Gauges
+	public static final int PARTICLES = 14;
+	public static final int NEIGHBORS_PER_PARTICLE = 15;
+	public static final int HEAP_MB = 16;
+
+	public static final int COUNT = 17;
+	private static final int TIMERS = 10;
+	private static final int GAUGES = PARTICLES;
+	private static final String[] NAMES = {
+		"grid", "prepare_collisions", "neighbors", "pressure", "forces", "collisions", "move", "world_step",
+		"draw", "surface", "steps", "fixture_overflows", "allocations", "neighbor_rebuilds", "particles", "neighbors_per_particle", "heap_mb"
+	};
+
+	/** Frames kept for the dumps. */
+	public static final int HISTORY = 600;
+	//frames averaged in the overlay
+	private static final int OVERLAY_FRAMES = 60;
+
+	private static boolean enabled;
+	private static final double[] current = new double[COUNT];
+	private static final double[][] history = new double[HISTORY][COUNT];
+	private static int frames;
+	private static int allocations;
+
+	private Metrics(){
+	}
+
+	public static boolean isEnabled(){ return enabled; }
+
+	/** Starts or stops recording, the frames recorded so far are kept. */
+	public static void setEnabled(boolean enabled){
+		if (enabled && !Metrics.enabled) for (int i=0; i<COUNT; i++) current[i] = 0;
+		Metrics.enabled = enabled;
+	}
+
+	/** @return the start time for {@link #lap(int, long)}, 0 when disabled */
+	public static long start(){
+		return enabled ? System.nanoTime() : 0L;
+	}
+
+	/** Adds the time since start to the timer. @return the current time, the start of the next lap */
+	public static long lap(int timer, long start){
+		if (!enabled) return 0L;
+		long now = System.nanoTime();
+		current[timer] += now - start;
+		return now;
+	}
+
+	public static void count(int counter, int amount){
+		if (enabled) current[counter] += amount;
+	}
+
+	public static void set(int gauge, double value){
+		if (enabled) current[gauge] = value;
+	}
+
+	/** Counts an allocation, from any thread. */
+	public static void countAllocation(){
+		if (!enabled) return;
+		synchronized(Metrics.class){
+			allocations++;
+		}
+	}
+
+	/** Closes the current frame. Timers and counters start from zero again, gauges keep their value. */
+	public static void endFrame(){
+		if (!enabled) return;
+
+		synchronized(Metrics.class){
+			current[ALLOCATIONS] = allocations;
+			allocations = 0;
+		}
+		Runtime runtime = Runtime.getRuntime();
+		current[HEAP_MB] = (runtime.totalMemory() - runtime.freeMemory()) / (1024.0*1024.0);
+
+		System.arraycopy(current, 0, history[frames % HISTORY], 0, COUNT);
+		frames++;
+		for (int i=0; i<GAUGES; i++) current[i] = 0;
+	}
+
+	/** @return the average of a metric over the last frames, at most {@link #HISTORY} */
+	public static double getAverage(int metric, int frames){
+		int n = Math.min(frames, Math.min(Metrics.frames, HISTORY));
+		if (n == 0) return 0;
+		double sum = 0;
+		for (int i=1; i<=n; i++) sum += history[(Metrics.frames - i) % HISTORY][metric];
+		return sum / n;
+	}
+
+	/** @return the averages of the last second as lines of text, timers in milliseconds */
+	public static String format(){
+		StringBuilder text = new StringBuilder();
+		for (int i=0; i<COUNT; i++){
+			double value = getAverage(i, OVERLAY_FRAMES);
+			text.append(NAMES[i]).append(": ");
+			if (i < TIMERS) text.append(round(value / 1E6)).append(" ms");
+			else text.append(round(value));
+			text.append('\n');
+		}
+		return text.toString();
+	}
+
+	private static double round(double value){
+		return Math.round(value * 100.0) / 100.0;
+	}
+
+	/** Writes one line per recorded frame, the oldest first. Timers are in nanoseconds. */
+	public static void writeCsv(Writer writer) throws IOException {
+		writer.write("frame");
+		for (int i=0; i<COUNT; i++) writer.write(","+column(i));
+		writer.write("\n");
+
+		for (int frame=Math.max(0, frames - HISTORY); frame<frames; frame++){
+			double[] values = history[frame % HISTORY];
+			writer.write(Integer.toString(frame));
+			for (int i=0; i<COUNT; i++) writer.write(","+values[i]);
+			writer.write("\n");
+		}
+		writer.flush();
+	}
+
+	/** Writes the recorded frames as an array of objects, the oldest first. Timers are in nanoseconds. */
+	public static void writeJson(Writer writer) throws IOException {
+		writer.write("[\n");
+		for (int frame=Math.max(0, frames - HISTORY); frame<frames; frame++){
+			double[] values = history[frame % HISTORY];
+			writer.write("{\"frame\":"+frame);
+			for (int i=0; i<COUNT; i++) writer.write(",\""+column(i)+"\":"+values[i]);
+			writer.write(frame < frames-1 ? "},\n" : "}\n");
+		}
+		writer.write("]\n");
+		writer.flush();
+	}
+
+	private static String column(int metric){
+		return metric < TIMERS ? NAMES[metric]+"_ns" : NAMES[metric];
+	}
+}
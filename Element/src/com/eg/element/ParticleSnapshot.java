@@ -0,0 +1,92 @@
+package com.eg.element;
+
+/**
+ * Copy of the positions of all active particles at the start and the end of a step.
+ * <p>
+ * {@link Liquid} keeps two of them: it writes the back one after every step and
+ * {@link Liquid#swapSnapshots()} makes it the front one, which the renderers read.
+ * So the renderers can draw one step while the next one is simulated.
+ * <p>
+ * When the liquid renumbers its particles it hands the old to new indices of the particles 
+ * of the previous snapshot along, so the renderers can keep their per particle state.
+ */
+public class ParticleSnapshot {
+
+	public int count;
+	//capacity of the particle store, all indices are below it
+	public int capacity;
+	//particle index of every entry
+	public int[] indices;
+	//x/y pairs at the end and the start of the step, ready to be used as vertices
+	public float[] positions;
+	public float[] previousPositions;
+
+	//counts the published snapshots
+	public int publication;
+	//compactions of the liquid so far
+	public int compactions;
+	//whether the particles were renumbered since the previous snapshot, then remap holds
+	//the new index of every index of that snapshot, -1 for the removed ones
+	public boolean remapped;
+	public int[] remap = new int[0];
+
+	ParticleSnapshot(int capacity){
+		this.capacity = capacity;
+		indices = new int[capacity];
+		positions = new float[capacity*2];
+		previousPositions = new float[capacity*2];
+	}
+
+	// Called before the step, the particles may not change until capture()
+	void capturePrevious(Liquid liquid){
+		final ParticleStore ps = liquid.particles;
+		final int count = liquid.getActiveParticleCount();
+		// Follow the store when it grows or shrinks
+		if (indices.length < count || indices.length > ps.capacity){
+			Metrics.countAllocation();
+			indices = new int[ps.capacity];
+			positions = new float[ps.capacity*2];
+			previousPositions = new float[ps.capacity*2];
+		}
+
+		for (int i=0; i<count; i++){
+			int index = liquid.activeParticles.get(i);
+			indices[i] = index;
+			previousPositions[i*2] = ps.positionX[index];
+			previousPositions[i*2+1] = ps.positionY[index];
+		}
+		this.count = count;
+		this.capacity = ps.capacity;
+	}
+
+	void capture(Liquid liquid){
+		final ParticleStore ps = liquid.particles;
+		for (int i=0; i<count; i++){
+			int index = indices[i];
+			positions[i*2] = ps.positionX[index];
+			positions[i*2+1] = ps.positionY[index];
+		}
+	}
+
+	void publish(int publication, int compactions, int[] remap){
+		this.publication = publication;
+		this.compactions = compactions;
+		remapped = remap != null;
+		if (remap == null) return;
+
+		if (this.remap.length != remap.length) this.remap = new int[remap.length];
+		System.arraycopy(remap, 0, this.remap, 0, remap.length);
+	}
+
+	/**
+	 * Blends the positions at the start and the end of the step.
+	 * @param alpha 0 for the start, 1 for the end of the step
+	 * @param out receives x/y pairs
+	 */
+	public void interpolate(float alpha, float[] out){
+		final float[] previous = previousPositions;
+		final float[] current = positions;
+		for (int i=0, n=count*2; i<n; i++)
+			out[i] = previous[i] + (current[i] - previous[i]) * alpha;
+	}
+}
@@ -0,0 +1,184 @@
+package com.eg.element;
+
+/**
+ * Structure-of-arrays storage for the particles of a {@link Liquid}.
+ * Every per-particle quantity lives in its own flat primitive array and is
+ * addressed by the particle index, so the solver loops walk contiguous memory
+ * instead of chasing object references.
+ * <p>
+ * The arrays grow on demand. Free indices are kept on a stack, so allocating and releasing
+ * a particle takes constant time.
+ */
+public class ParticleStore {
+
+	public static final int MAX_FIXTURES_TO_TEST = 20;
+
+	//length of the per particle arrays, changed by resize()
+	int capacity;
+	public final int maxNeighbors;
+
+	float[] positionX;
+	float[] positionY;
+	float[] velocityX;
+	float[] velocityY;
+	//seconds until the particle is removed
+	float[] lifetime;
+
+	float[] scaledPositionX;
+	float[] scaledPositionY;
+	float[] scaledVelocityX;
+	float[] scaledVelocityY;
+
+	float[] deltaX;
+	float[] deltaY;
+
+	float[] pressure;
+	float[] nearPressure;
+
+	boolean[] alive;
+
+	//keep track of the grid coordinates
+	int[] cellX;
+	int[] cellY;
+
+	//neighbor lists, particle i owns the slots [i*maxNeighbors, (i+1)*maxNeighbors)
+	int[] neighbors;
+	float[] distances;
+	int[] neighborCount;
+
+	//collision candidates as FixtureCache slots, particle i owns the slots [i*MAX_FIXTURES_TO_TEST, (i+1)*MAX_FIXTURES_TO_TEST)
+	int[] fixturesToTest;
+	int[] numFixturesToTest;
+
+	//stack of the free indices, the lowest one on top
+	private int[] free;
+	private int freeCount;
+
+	public ParticleStore(int capacity, int maxNeighbors){
+		this.maxNeighbors = maxNeighbors;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity){
+		this.capacity = capacity;
+
+		positionX = new float[capacity];
+		positionY = new float[capacity];
+		velocityX = new float[capacity];
+		velocityY = new float[capacity];
+		lifetime = new float[capacity];
+
+		scaledPositionX = new float[capacity];
+		scaledPositionY = new float[capacity];
+		scaledVelocityX = new float[capacity];
+		scaledVelocityY = new float[capacity];
+
+		deltaX = new float[capacity];
+		deltaY = new float[capacity];
+
+		pressure = new float[capacity];
+		nearPressure = new float[capacity];
+
+		alive = new boolean[capacity];
+
+		cellX = new int[capacity];
+		cellY = new int[capacity];
+
+		neighbors = new int[capacity*maxNeighbors];
+		distances = new float[capacity*maxNeighbors];
+		neighborCount = new int[capacity];
+
+		fixturesToTest = new int[capacity*MAX_FIXTURES_TO_TEST];
+		numFixturesToTest = new int[capacity];
+
+		free = new int[capacity];
+		freeCount = 0;
+		for (int index=capacity-1; index>=0; index--) free[freeCount++] = index;
+	}
+
+	/** @return a free index, marked alive. The store grows when it is full. */
+	public int allocate(){
+		if (freeCount == 0) resize(Math.max(16, capacity*2));
+		int index = free[--freeCount];
+		alive[index] = true;
+		return index;
+	}
+
+	public void release(int index){
+		alive[index] = false;
+		free[freeCount++] = index;
+	}
+
+	/** Moves the state of a particle that is kept between steps to a free index. */
+	void move(int from, int to){
+		positionX[to] = positionX[from];
+		positionY[to] = positionY[from];
+		velocityX[to] = velocityX[from];
+		velocityY[to] = velocityY[from];
+		lifetime[to] = lifetime[from];
+		alive[to] = true;
+		alive[from] = false;
+	}
+
+	/**
+	 * Changes the capacity, keeping the positions and velocities of all particles. 
+	 * When shrinking no particle may be alive at or above the new capacity.
+	 */
+	public void resize(int capacity){
+		Metrics.countAllocation();
+		final int count = Math.min(capacity, this.capacity);
+		final float[] positionX = this.positionX, positionY = this.positionY;
+		final float[] velocityX = this.velocityX, velocityY = this.velocityY;
+		final float[] lifetime = this.lifetime;
+		final boolean[] alive = this.alive;
+		for (int index=count; index<this.capacity; index++)
+			if (alive[index]) throw new IllegalStateException("particle "+index+" is alive beyond the new capacity "+capacity);
+
+		// The other arrays are only used within a step, the liquid rebuilds its neighbor lists after a resize
+		allocate(capacity);
+		System.arraycopy(positionX, 0, this.positionX, 0, count);
+		System.arraycopy(positionY, 0, this.positionY, 0, count);
+		System.arraycopy(velocityX, 0, this.velocityX, 0, count);
+		System.arraycopy(velocityY, 0, this.velocityY, 0, count);
+		System.arraycopy(lifetime, 0, this.lifetime, 0, count);
+		System.arraycopy(alive, 0, this.alive, 0, count);
+
+		freeCount = 0;
+		for (int index=capacity-1; index>=0; index--) if (!this.alive[index]) free[freeCount++] = index;
+	}
+
+	/**
+	 * Moves the particle order[i] to the index i for all i below count, these have to be all 
+	 * particles that are alive. Afterwards the particles occupy the lowest indices.
+	 */
+	void reorder(int[] order, int count){
+		// The scaled and pressure arrays are only used within a step, they take the new order
+		// and are swapped in without allocating
+		float[] px = scaledPositionX, py = scaledPositionY;
+		float[] vx = scaledVelocityX, vy = scaledVelocityY;
+		float[] life = nearPressure;
+		for (int i=0; i<count; i++){
+			int index = order[i];
+			px[i] = positionX[index];
+			py[i] = positionY[index];
+			vx[i] = velocityX[index];
+			vy[i] = velocityY[index];
+			life[i] = lifetime[index];
+		}
+		scaledPositionX = positionX; scaledPositionY = positionY;
+		scaledVelocityX = velocityX; scaledVelocityY = velocityY;
+		nearPressure = lifetime;
+		positionX = px; positionY = py;
+		velocityX = vx; velocityY = vy;
+		lifetime = life;
+
+		for (int index=0; index<capacity; index++) alive[index] = index < count;
+		freeCount = 0;
+		for (int index=capacity-1; index>=count; index--) free[freeCount++] = index;
+	}
+
+	public int getCapacity(){ return capacity; }
+
+	/** @return how many particles are alive */
+	public int size(){ return capacity - freeCount; }
+}
@@ -0,0 +1,130 @@
+package com.eg.element;
+
+import com.badlogic.gdx.Application.ApplicationType;
+
+/**
+ * Holds a target frame time by trading simulation and surface quality for speed.
+ * <p>
+ * Every frame it is told how long a step of the simulation and the surface update took.
+ * From the smoothed cost of a frame it lowers or raises a quality level between 0 and 1,
+ * which sets the particle budget, the spawn rate, the neighbor limit of the liquid and the
+ * square size of the surface between the platform's {@link Limits}. Lowering the budget
+ * stops the emitters and the liquid removes the particles above it over about a second,
+ * see {@link Liquid#setParticleBudget(int)}.
+ * <p>
+ * Has to be called while no step is running, i.e. between {@link SimulationThread#sync()}
+ * and {@link SimulationThread#start(int)}.
+ */
+public class QualityGovernor {
+
+	//frames between two adjustments, so the last one can take effect
+	private static final int ADJUST_INTERVAL = 30;
+	//weight of a new frame in the smoothed cost
+	private static final float SMOOTHING = 0.1f;
+	//the quality is raised when a frame costs less than this part of the target
+	private static final float HEADROOM = 0.75f;
+	private static final float RAISE_STEP = 0.05f;
+	private static final float MAX_LOWER_STEP = 0.25f;
+
+	/** The range of every setting, from the lowest to the highest quality. */
+	public static class Limits {
+		public float targetFrameTime = 1f/60f;
+		public int minParticles = 500, maxParticles = Liquid.MAX_PARTICLES;
+		public float minSpawnRate = 0.25f, maxSpawnRate = 1f;
+		public int minNeighbors = 20, maxNeighbors = 75;
+		//surface squares, the coarse ones are the larger ones
+		public float coarseSquareSize = 1.2f, fineSquareSize = Liquid.CELL_SIZE;
+
+		/** @return the default limits of the platform */
+		public static Limits forPlatform(ApplicationType type){
+			Limits limits = new Limits();
+			switch (type){
+			case Android:
+			case iOS:
+				limits.targetFrameTime = 1f/30f;
+				limits.minParticles = 300;
+				limits.maxParticles = 1500;
+				limits.minNeighbors = 15;
+				limits.maxNeighbors = 50;
+				limits.coarseSquareSize = 1.5f;
+				break;
+			case WebGL:
+				// GWT has no threads, everything runs on the one of the browser
+				limits.targetFrameTime = 1f/30f;
+				limits.minParticles = 200;
+				limits.maxParticles = 1000;
+				limits.minNeighbors = 10;
+				limits.maxNeighbors = 40;
+				limits.coarseSquareSize = 1.5f;
+				limits.fineSquareSize = 0.8f;
+				break;
+			default:
+				break;
+			}
+			return limits;
+		}
+	}
+
+	private final Liquid liquid;
+	private final MetaballSystem surface;
+	private final Limits limits;
+
+	private float quality = 1f;
+	//smoothed cost of a frame in seconds, negative until the first frame
+	private float frameCost = -1f;
+	private int frames;
+
+	public QualityGovernor(Liquid liquid, MetaballSystem surface, Limits limits){
+		this.liquid = liquid;
+		this.surface = surface;
+		this.limits = limits;
+		apply();
+	}
+
+	/**
+	 * Measures a frame and adjusts the quality every few frames.
+	 * @param stepTime duration of a simulation step in seconds
+	 * @param surfaceTime duration of the surface update in seconds, 0 if it was not updated
+	 */
+	public void update(float stepTime, float surfaceTime){
+		// The steps needed per frame at the target frame rate, not the ones run in the last frame.
+		// Those grow as frames get slower, which would make the governor overreact.
+		float stepsPerFrame = limits.targetFrameTime / liquid.getTimeStep();
+		float cost = stepTime * stepsPerFrame + surfaceTime;
+		frameCost = frameCost < 0f ? cost : frameCost + (cost - frameCost) * SMOOTHING;
+
+		if (++frames < ADJUST_INTERVAL) return;
+		frames = 0;
+
+		float load = frameCost / limits.targetFrameTime;
+		if (load > 1f){
+			setQuality(quality - Math.min(MAX_LOWER_STEP, (load - 1f) * 0.5f));
+		}else if (load < HEADROOM){
+			setQuality(quality + RAISE_STEP);
+		}
+	}
+
+	public float getQuality(){ return quality; }
+
+	/** Sets the quality level between 0 and 1 directly. */
+	public void setQuality(float quality){
+		quality = Math.max(0f, Math.min(quality, 1f));
+		if (quality == this.quality) return;
+		this.quality = quality;
+		apply();
+	}
+
+	/** @return the smoothed cost of a frame in seconds */
+	public float getFrameCost(){ return Math.max(frameCost, 0f); }
+
+	private void apply(){
+		final Limits l = limits;
+		liquid.setParticleBudget(Math.round(l.minParticles + (l.maxParticles - l.minParticles) * quality));
+		liquid.setSpawnRateScale(l.minSpawnRate + (l.maxSpawnRate - l.minSpawnRate) * quality);
+		liquid.setNeighborLimit(Math.round(l.minNeighbors + (l.maxNeighbors - l.minNeighbors) * quality));
+
+		// Changing the square size extracts the whole surface again, so only steps of 0.1 are used
+		float squareSize = l.coarseSquareSize + (l.fineSquareSize - l.coarseSquareSize) * quality;
+		if (surface != null) surface.setSquareSize(Math.round(squareSize * 10f) / 10f);
+	}
+}
@@ -0,0 +1,131 @@
+package com.eg.element;
+
+import com.badlogic.gdx.physics.box2d.World;
+import com.badlogic.gdx.utils.Disposable;
+
+/**
+ * Steps the liquid and the world on a thread of its own, so the steps of a frame can be
+ * simulated while the GL thread draws the previous ones.
+ * <p>
+ * Every frame the GL thread calls {@link #sync()}, which waits for the running steps and
+ * publishes the particle snapshot of the last one. Then it may change the liquid and the world,
+ * e.g. move magnets, and calls {@link #start(int)} before drawing. Between {@link #start(int)} 
+ * and the next {@link #sync()} only the liquid's front snapshot may be used.
+ */
+public class SimulationThread implements Disposable {
+
+	private final Liquid liquid;
+	private final World world;
+	private final Thread thread;
+
+	//guarded by this
+	private boolean stepping;
+	private int steps;
+	//whether a step finished that has not been published yet
+	private boolean finished;
+	private boolean running = true;
+	//average duration of the steps of the last batch in nanoseconds
+	private long stepTime;
+
+	public SimulationThread(Liquid liquid, World world){
+		this(liquid, world, Thread.NORM_PRIORITY);
+	}
+
+	public SimulationThread(Liquid liquid, World world, int priority){
+		this.liquid = liquid;
+		this.world = world;
+
+		thread = new Thread("Element-simulation"){
+			@Override
+			public void run() {
+				loop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(priority);
+		thread.start();
+	}
+
+	/** Starts the given number of steps in the background, of the liquid's time step each. */
+	public synchronized void start(int steps){
+		if (!running) throw new IllegalStateException("simulation thread has been disposed");
+		if (steps <= 0) return;
+		this.steps = steps;
+		stepping = true;
+		notifyAll();
+	}
+
+	/** Waits until the running steps are done and makes the last one the front snapshot of the liquid. */
+	public synchronized void sync(){
+		boolean interrupted = false;
+		while (stepping && running){
+			try{
+				wait();
+			}catch (InterruptedException e){
+				interrupted = true;
+			}
+		}
+		if (finished){
+			liquid.swapSnapshots();
+			finished = false;
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/** @return the average duration of the last steps in seconds, of the liquid and the world together */
+	public synchronized float getStepTime(){
+		return stepTime / 1E9f;
+	}
+
+	private void loop(){
+		while (true){
+			synchronized(this){
+				while (running && !stepping){
+					try{
+						wait();
+					}catch (InterruptedException e){
+						return;
+					}
+				}
+				if (!running) return;
+			}
+
+			long start = System.nanoTime();
+			try{
+				for (int i=0; i<steps; i++){
+					liquid.step();
+					long worldStart = Metrics.start();
+					world.step(liquid.getTimeStep(), 8, 3);
+					Metrics.lap(Metrics.WORLD_STEP, worldStart);
+				}
+			}catch (Throwable t){
+				t.printStackTrace();
+			}
+
+			long time = (System.nanoTime() - start) / steps;
+			
+			synchronized(this){
+				stepTime = time;
+				stepping = false;
+				finished = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/** Waits for the running step and stops the thread. */
+	@Override
+	public void dispose() {
+		synchronized(this){
+			while (stepping){
+				try{
+					wait();
+				}catch (InterruptedException e){
+					break;
+				}
+			}
+			running = false;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.eg.element;
+
+/**
+ * Uniform grid over an unbounded plane, stored as a hash table of occupied cells.
+ * <p>
+ * Each cell is addressed by a single packed (x, y) key in an open-addressed
+ * table. The grid is rebuilt from scratch with a counting sort: call {@link #begin()},
+ * {@link #add(int, int, int)} every item, then {@link #end()}. Afterwards the items
+ * of each occupied cell lie next to each other in one flat array, so walking a
+ * cell touches contiguous memory and no per-cell objects are ever created or freed.
+ */
+public class SpatialGrid {
+
+	private static final int EMPTY = -1;
+
+	//open-addressed table, slot -> occupied cell or EMPTY
+	private int[] table;
+	private int mask;
+
+	//occupied cells in insertion order
+	private int cellCount;
+	private int[] cellKeys;
+	private int[] cellSlots;
+	private int[] cellStart;
+	private int[] cellSize;
+	//(y, x, cell) packed so that they sort row by row, filled by sortCells()
+	private long[] sortedCells;
+
+	//items, cell assignments before end() and sorted by cell afterwards
+	private int itemCount;
+	private int[] itemCells;
+	private int[] itemValues;
+	private int[] items;
+
+	public SpatialGrid(int expectedItems){
+		int cells = Math.max(16, expectedItems);
+		int tableSize = 1;
+		while (tableSize < cells*2) tableSize <<= 1;
+
+		table = new int[tableSize];
+		mask = tableSize - 1;
+		for (int i=0; i<tableSize; i++) table[i] = EMPTY;
+
+		cellKeys = new int[cells];
+		cellSlots = new int[cells];
+		cellStart = new int[cells];
+		cellSize = new int[cells];
+		sortedCells = new long[cells];
+
+		itemCells = new int[cells];
+		itemValues = new int[cells];
+		items = new int[cells];
+	}
+
+	/** Packs cell coordinates into a single key. Coordinates wrap at 16 bits. */
+	public static int key(int x, int y){
+		return (x << 16) | (y & 0xFFFF);
+	}
+
+	private static int hash(int key){
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/** Removes all items, only touching the slots that were occupied. */
+	public void begin(){
+		for (int c=0; c<cellCount; c++) table[cellSlots[c]] = EMPTY;
+		cellCount = 0;
+		itemCount = 0;
+	}
+
+	/** Adds an item to the cell (x, y). Items may be added to several cells. */
+	public void add(int x, int y, int item){
+		int key = key(x, y);
+		int slot = hash(key) & mask;
+		int cell;
+		while ((cell = table[slot]) != EMPTY && cellKeys[cell] != key) slot = (slot + 1) & mask;
+
+		if (cell == EMPTY){
+			if (cellCount == cellKeys.length) growCells();
+			if ((cellCount+1)*2 > table.length){
+				growTable();
+				add(x, y, item);
+				return;
+			}
+			cell = cellCount++;
+			table[slot] = cell;
+			cellKeys[cell] = key;
+			cellSlots[cell] = slot;
+			cellSize[cell] = 0;
+		}
+
+		if (itemCount == itemCells.length) growItems();
+		itemCells[itemCount] = cell;
+		itemValues[itemCount] = item;
+		itemCount++;
+		cellSize[cell]++;
+	}
+
+	/** Sorts the added items by cell. */
+	public void end(){
+		int start = 0;
+		for (int c=0; c<cellCount; c++){
+			cellStart[c] = start;
+			start += cellSize[c];
+		}
+		for (int i=0; i<itemCount; i++){
+			int c = itemCells[i];
+			items[cellStart[c]++] = itemValues[i];
+		}
+		for (int c=0; c<cellCount; c++) cellStart[c] -= cellSize[c];
+	}
+
+	/**
+	 * Orders the occupied cells row by row, from the bottom up and from left to right within a
+	 * row, see {@link #getSortedCell(int)}. Valid until the next {@link #begin()}.
+	 */
+	public void sortCells(){
+		for (int c=0; c<cellCount; c++)
+			sortedCells[c] = ((long)getCellY(c) << 48) | ((long)(getCellX(c) + 0x8000) << 32) | c;
+		// Heapsort, Arrays.sort() may allocate a buffer for input that is already almost sorted
+		for (int i=cellCount/2-1; i>=0; i--) siftDown(sortedCells, i, cellCount);
+		for (int end=cellCount-1; end>0; end--){
+			long top = sortedCells[0];
+			sortedCells[0] = sortedCells[end];
+			sortedCells[end] = top;
+			siftDown(sortedCells, 0, end);
+		}
+	}
+
+	private static void siftDown(long[] heap, int i, int size){
+		long value = heap[i];
+		int child;
+		while ((child = 2*i + 1) < size){
+			if (child+1 < size && heap[child+1] > heap[child]) child++;
+			if (heap[child] <= value) break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = value;
+	}
+
+	/** @return the occupied cell at the given rank in row order, after {@link #sortCells()} */
+	public int getSortedCell(int index){ return (int)sortedCells[index]; }
+
+	/** @return the occupied cell at (x, y) or -1 */
+	public int find(int x, int y){
+		int key = key(x, y);
+		int slot = hash(key) & mask;
+		int cell;
+		while ((cell = table[slot]) != EMPTY){
+			if (cellKeys[cell] == key) return cell;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	public int getCellCount(){ return cellCount; }
+	public int getCellX(int cell){ return cellKeys[cell] >> 16; }
+	public int getCellY(int cell){ return (short)cellKeys[cell]; }
+
+	/** @return index of the first item of the cell in {@link #getItem(int)} */
+	public int getCellStart(int cell){ return cellStart[cell]; }
+	/** @return index after the last item of the cell in {@link #getItem(int)} */
+	public int getCellEnd(int cell){ return cellStart[cell] + cellSize[cell]; }
+	public int getItem(int index){ return items[index]; }
+
+	private void growCells(){
+		Metrics.countAllocation();
+		int size = cellKeys.length*2;
+		cellKeys = copy(cellKeys, size);
+		cellSlots = copy(cellSlots, size);
+		cellStart = copy(cellStart, size);
+		cellSize = copy(cellSize, size);
+		sortedCells = new long[size];
+	}
+
+	private void growItems(){
+		Metrics.countAllocation();
+		int size = itemCells.length*2;
+		itemCells = copy(itemCells, size);
+		itemValues = copy(itemValues, size);
+		items = new int[size];
+	}
+
+	private void growTable(){
+		Metrics.countAllocation();
+		table = new int[table.length*2];
+		mask = table.length - 1;
+		for (int i=0; i<table.length; i++) table[i] = EMPTY;
+		for (int c=0; c<cellCount; c++){
+			int slot = hash(cellKeys[c]) & mask;
+			while (table[slot] != EMPTY) slot = (slot + 1) & mask;
+			table[slot] = c;
+			cellSlots[c] = slot;
+		}
+	}
+
+	private static int[] copy(int[] array, int size){
+		int[] result = new int[size];
+		System.arraycopy(array, 0, result, 0, Math.min(array.length, size));
+		return result;
+	}
+}